@@ -0,0 +1,60 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generates the project trees the benchmarks run against
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates the given number of directories below the root, in two levels of up to 100 directories each
+     */
+    static void createDirectories(Path root, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.createDirectories(root.resolve("p" + (i / 100)).resolve("d" + i));
+        }
+    }
+
+    /**
+     * Creates the given number of small files below the root, in directories of the given size
+     */
+    static void createFiles(Path root, int count, int filesPerDirectory, String extension) throws IOException {
+        byte[] content = new byte[2048];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        for (int i = 0; i < count; i++) {
+            Path dir = root.resolve("p" + (i / (filesPerDirectory * 100))).resolve("d" + (i / filesPerDirectory));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("File" + i + extension), content);
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || Files.notExists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing of a synthetic storm of events, as done by the watch thread for each event (routing it and
+ * handing it to the coalescer), followed by flushing the merged changes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventStormBenchmark {
+
+    private static final String WEBAPP = "benchmark";
+
+    /**
+     * create: a build writing new files; modify: repeated saves of the same files; delete: a clean;
+     * mixed: files being re-created, modified and deleted, as during an IDE rebuild
+     */
+    @Param({ "create", "modify", "delete", "mixed" })
+    public String storm;
+
+    @Param({ "10000" })
+    public int events;
+
+    @Param({ "1000" })
+    public int files;
+
+    private StartupListener listener;
+    private Path projectPath;
+    private FileChange.Kind[] kinds;
+    private Path[] paths;
+
+    @Setup
+    public void setUp() {
+        projectPath = Paths.get("/home/user/workspace/benchmark-project");
+        listener = new StartupListener();
+        listener.addProjectPath(WEBAPP, projectPath);
+        listener.addWebappPath(WEBAPP, Paths.get("/opt/tomcat/webapps/benchmark"));
+
+        kinds = new FileChange.Kind[events];
+        paths = new Path[events];
+        for (int i = 0; i < events; i++) {
+            int file = i % files;
+            paths[i] = projectPath.resolve("target/classes/com/example/p" + (file / 50) + "/Class" + file + ".class");
+            kinds[i] = kindOf(i);
+        }
+    }
+
+    private FileChange.Kind kindOf(int event) {
+        switch (storm) {
+        case "create":
+            return FileChange.Kind.CREATE;
+        case "modify":
+            return FileChange.Kind.MODIFY;
+        case "delete":
+            return FileChange.Kind.DELETE;
+        default:
+            int round = event / files;
+            return round % 3 == 0 ? FileChange.Kind.DELETE : round % 3 == 1 ? FileChange.Kind.CREATE : FileChange.Kind.MODIFY;
+        }
+    }
+
+    @Benchmark
+    public int processStorm() {
+        final int[] handled = new int[1];
+        EventCoalescer coalescer = new EventCoalescer(200, 2000, new EventCoalescer.ChangeHandler() {
+            @Override
+            public void handle(List<FileChange> changes) {
+                handled[0] += changes.size();
+            }
+        });
+        for (int i = 0; i < events; i++) {
+            Path target = listener.determineTarget(WEBAPP, paths[i], projectPath);
+            coalescer.offer(new FileChange(kinds[i], paths[i], target, null));
+        }
+        coalescer.flush(true);
+        return handled[0];
+    }
+}
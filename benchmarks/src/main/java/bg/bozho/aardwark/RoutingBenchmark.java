@@ -0,0 +1,67 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of mapping a changed file to its location in the webapp - done for every event
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    private static final String WEBAPP = "benchmark";
+
+    private StartupListener listener;
+    private Path projectPath;
+    private Path[] files;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        projectPath = Paths.get("/home/user/workspace/benchmark-project");
+        listener = new StartupListener();
+        listener.addProjectPath(WEBAPP, projectPath);
+        listener.addWebappPath(WEBAPP, Paths.get("/opt/tomcat/webapps/benchmark"));
+
+        files = new Path[1024];
+        for (int i = 0; i < files.length; i++) {
+            switch (i % 4) {
+            case 0:
+                files[i] = projectPath.resolve("target/classes/com/example/service/impl/Service" + i + ".class");
+                break;
+            case 1:
+                files[i] = projectPath.resolve("target/classes/com/example/Model" + i + "$Builder.class");
+                break;
+            case 2:
+                files[i] = projectPath.resolve("src/main/webapp/WEB-INF/views/page" + i + ".jsp");
+                break;
+            default:
+                // not synced, e.g. sources or build leftovers
+                files[i] = projectPath.resolve("target/generated-sources/com/example/Generated" + i + ".java");
+            }
+        }
+    }
+
+    @Benchmark
+    public Path determineTarget() {
+        Path file = files[index++ & (files.length - 1)];
+        return listener.determineTarget(WEBAPP, file, projectPath);
+    }
+}
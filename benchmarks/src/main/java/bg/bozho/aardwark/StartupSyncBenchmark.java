@@ -0,0 +1,89 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The startup sync of the classes and the webapp files of a generated project into an empty webapp (cold),
+ * or into one that is already in sync (warm - only the comparison with the manifest is done)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupSyncBenchmark {
+
+    private static final String WEBAPP = "aardwark-startup-sync-benchmark";
+
+    @Param({ "1000", "10000" })
+    public int files;
+
+    @Param({ "cold", "warm" })
+    public String webappState;
+
+    private Path projectPath;
+    private Path webappPath;
+    private Path manifestFile;
+    private StartupListener listener;
+
+    @Setup(Level.Trial)
+    public void createProject() throws IOException {
+        projectPath = Files.createTempDirectory("aardwark-benchmark");
+        webappPath = projectPath.resolve("webapps").resolve(WEBAPP);
+        manifestFile = Paths.get(System.getProperty("java.io.tmpdir"), WEBAPP + ".manifest");
+        BenchmarkFiles.createFiles(projectPath.resolve("target/classes"), files / 2, 50, ".class");
+        BenchmarkFiles.createFiles(projectPath.resolve("src/main/webapp"), files - files / 2, 50, ".jsp");
+
+        listener = new StartupListener();
+        listener.initialize(new SyncSettings());
+        listener.addProjectPath(WEBAPP, projectPath);
+        listener.addWebappPath(WEBAPP, webappPath);
+        clearWebapp();
+        if (webappState.equals("warm")) {
+            listener.copyClassesAndResources(WEBAPP, null);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareWebapp() throws IOException {
+        if (webappState.equals("cold")) {
+            clearWebapp();
+        }
+    }
+
+    private void clearWebapp() throws IOException {
+        BenchmarkFiles.delete(webappPath);
+        Files.deleteIfExists(manifestFile);
+    }
+
+    @Benchmark
+    public void copyClassesAndResources() throws IOException {
+        listener.copyClassesAndResources(WEBAPP, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteProject() throws IOException {
+        listener.shutdown();
+        BenchmarkFiles.delete(projectPath);
+        Files.deleteIfExists(manifestFile);
+    }
+}
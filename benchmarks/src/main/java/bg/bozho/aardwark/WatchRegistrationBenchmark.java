@@ -0,0 +1,75 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to register the watches of a project with a generated tree of directories. Note that on Linux
+ * the largest trees need fs.inotify.max_user_watches to be raised above the number of directories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WatchRegistrationBenchmark {
+
+    private static final String WEBAPP = "benchmark";
+
+    @Param({ "1000", "10000", "100000" })
+    public int directories;
+
+    private Path projectPath;
+    private StartupListener listener;
+    private WatchService watcher;
+
+    @Setup(Level.Trial)
+    public void createProject() throws IOException {
+        projectPath = Files.createTempDirectory("aardwark-benchmark");
+        BenchmarkFiles.createDirectories(projectPath.resolve("target/classes"), directories);
+        Files.createDirectories(projectPath.resolve("src/main/webapp"));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        listener = new StartupListener();
+        listener.setWatcher(watcher);
+        listener.addProjectPath(WEBAPP, projectPath);
+        listener.addWebappPath(WEBAPP, projectPath.resolve("webapp"));
+    }
+
+    @Benchmark
+    public void watchProject() throws IOException {
+        listener.watchProject(WEBAPP, projectPath, null, false);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWatcher() throws IOException {
+        watcher.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteProject() throws IOException {
+        BenchmarkFiles.delete(projectPath);
+    }
+}
@@ -0,0 +1,238 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Publishes the settled changes of a project as a whole, rather than one file at a time. The new contents
+ * of all files in the batch are first put in a staging directory in the webapp (so that the slow part
+ * happens out of sight of the container), and are then renamed into place, one after the other, without
+ * any copying in between. Once the batch is in place, the container is notified once - by touching a file
+ * (e.g. WEB-INF/web.xml) and/or by running a command - so that it reloads once per build rather than
+ * once per file. Each file is replaced at once, so the container never reads a partially written one, but the
+ * files of a batch are replaced one by one. The staged files are always copies - a hard link to the source
+ * would let the compiler write into the webapp directly, and renaming it over another link to the same file
+ * would do nothing.
+ */
+public class BatchPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchPublisher.class);
+
+    public static final String MODE_DIRECT = "direct";
+    public static final String MODE_BATCH = "batch";
+
+    static final String STAGING_DIRECTORY = "WEB-INF/.aardwark-staging";
+
+    private final String webappName;
+    private final Path webappPath;
+    private final TransferStrategy transferStrategy;
+    private final SyncTarget syncTarget;
+    private final SyncManifest manifest;
+    private final SyncMetrics metrics;
+    private final String touchFile;
+    private final String hookCommand;
+
+    private final ExecutorService executor;
+    private final AtomicBoolean publishing = new AtomicBoolean();
+    private long batchCount;
+
+    /**
+     * @param touchFile a file relative to the webapp whose modification time is updated after each batch, or null
+     * @param hookCommand a command run after each batch (with the webapp directory as last argument), or null
+     */
+    public BatchPublisher(String webappName, Path webappPath, TransferStrategy transferStrategy, SyncManifest manifest,
+            SyncMetrics metrics, String touchFile, String hookCommand) {
+        this.webappName = webappName;
+        this.webappPath = webappPath;
+        this.transferStrategy = transferStrategy.toCopying();
+        this.syncTarget = SyncTarget.local(transferStrategy);
+        this.manifest = manifest;
+        this.metrics = metrics;
+        this.touchFile = touchFile;
+        this.hookCommand = hookCommand;
+        this.executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("aardwark-publish-" + webappName).setDaemon(true).build());
+    }
+
+    /**
+     * Starts publishing the batch in the background, unless the previous batch is still being published
+     * @return whether the batch has been accepted
+     */
+    public boolean offer(final List<FileChange> changes) {
+        if (!publishing.compareAndSet(false, true)) {
+            return false;
+        }
+        final List<FileChange> batch = new ArrayList<>(changes);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publish(batch);
+                } catch (RuntimeException ex) {
+                    logger.error("Failed to publish changes of " + webappName, ex);
+                } finally {
+                    publishing.set(false);
+                }
+            }
+        });
+        return true;
+    }
+
+    void publish(List<FileChange> changes) {
+        long start = System.currentTimeMillis();
+        long batch = ++batchCount;
+        Path stagingDir = webappPath.resolve(STAGING_DIRECTORY);
+        Path[] staged = new Path[changes.size()];
+        long[] sizes = new long[changes.size()];
+        long[] lastModified = new long[changes.size()];
+
+        // stage the new contents
+        for (int i = 0; i < changes.size(); i++) {
+            FileChange change = changes.get(i);
+            Path source = change.getSource();
+            if (change.getKind() == FileChange.Kind.DELETE || Files.isDirectory(source) || Files.notExists(source)) {
+                continue;
+            }
+            try {
+                Files.createDirectories(stagingDir);
+                Path stagedFile = stagingDir.resolve(batch + "-" + i);
+                transferStrategy.transfer(source, stagedFile);
+                BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+                staged[i] = stagedFile;
+                sizes[i] = attributes.size();
+                lastModified[i] = attributes.lastModifiedTime().toMillis();
+            } catch (IOException ex) {
+                metrics.changeFailed();
+                logger.warn("Failed to stage " + change, ex);
+            }
+        }
+
+        // put everything in place
+        int published = 0;
+        for (int i = 0; i < changes.size(); i++) {
+            FileChange change = changes.get(i);
+            try {
+                if (change.getKind() == FileChange.Kind.DELETE) {
+                    syncTarget.delete(change.getTarget());
+                    manifest.remove(change.getSource());
+                } else if (staged[i] != null) {
+                    Files.createDirectories(change.getTarget().getParent());
+                    moveIntoPlace(staged[i], change.getTarget());
+                    manifest.put(change.getSource(), new SyncManifest.Entry(sizes[i], lastModified[i], null));
+                } else if (Files.isDirectory(change.getSource())) {
+                    Files.createDirectories(change.getTarget());
+                    continue;
+                } else {
+                    // failed to stage, or deleted in the meantime (and a DELETE change follows)
+                    continue;
+                }
+                metrics.changeApplied(change, sizes[i]);
+                published++;
+            } catch (IOException ex) {
+                metrics.changeFailed();
+                logger.warn("Failed to publish " + change, ex);
+                deleteQuietly(staged[i]);
+            }
+        }
+        deleteStagingDirectory(stagingDir);
+
+        if (published > 0) {
+            notifyContainer();
+            logger.info("Published " + published + " changes of " + webappName + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private void moveIntoPlace(Path staged, Path target) throws IOException {
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replaces the file with a copy of itself if it has other (hard) links, e.g. as synced by the link transfer mode
+     */
+    private void breakLink(Path file) throws IOException {
+        Object links;
+        try {
+            links = Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException ex) {
+            return; // not known on this file system
+        }
+        if (links instanceof Integer && (Integer) links > 1) {
+            Path copy = file.resolveSibling(file.getFileName() + ".aardwark-copy");
+            Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            moveIntoPlace(copy, file);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException ex) {
+            logger.debug("Failed to delete " + file, ex);
+        }
+    }
+
+    private void deleteStagingDirectory(Path stagingDir) {
+        try {
+            Files.deleteIfExists(stagingDir);
+        } catch (IOException ex) {
+            logger.debug("Staging directory of " + webappName + " not deleted", ex);
+        }
+    }
+
+    private void notifyContainer() {
+        if (touchFile != null) {
+            Path file = webappPath.resolve(touchFile);
+            try {
+                if (Files.exists(file)) {
+                    // touching a file linked to the one in the project would trigger another batch, and so on
+                    breakLink(file);
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to touch " + file, ex);
+            }
+        }
+        if (hookCommand != null) {
+            List<String> command = new ArrayList<>(Arrays.asList(hookCommand.trim().split("\\s+")));
+            command.add(webappPath.toString());
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(Redirect.INHERIT).start();
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    logger.warn("Publish hook " + command + " exited with " + exitCode);
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to run publish hook " + command, ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,197 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The checksums of the fixed-size blocks of a file, as in rsync: a weak rolling checksum, which can be moved along
+ * a byte at a time, and a strong one (MD5) to confirm matches. The receiver computes the signature of its copy,
+ * and the sender finds the blocks it already has anywhere in the new contents, so that only the rest is sent.
+ * The trailing partial block is not included, it is always sent as data.
+ */
+public class BlockSignature {
+
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    public BlockSignature(int blockSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * The parts of the new contents, in order - either a run of blocks of the old file, or data to be sent
+     */
+    public interface DeltaHandler {
+        void copy(int firstBlock, int blockCount) throws IOException;
+
+        void data(byte[] contents, int offset, int length) throws IOException;
+    }
+
+    public static BlockSignature compute(InputStream in, int blockSize) throws IOException {
+        List<Integer> weak = new ArrayList<>();
+        List<byte[]> strong = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[blockSize];
+        int read;
+        while ((read = readFully(in, block)) == blockSize) {
+            weak.add(checksum(block, 0, blockSize));
+            strong.add(digest.digest(block));
+        }
+        int[] weakArray = new int[weak.size()];
+        for (int i = 0; i < weakArray.length; i++) {
+            weakArray[i] = weak.get(i);
+        }
+        return new BlockSignature(blockSize, weakArray, strong.toArray(new byte[strong.size()][]));
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Goes through the new contents, passing the blocks found in the old file and the data in between to the handler
+     * @return the number of bytes that have to be sent as data
+     */
+    public long delta(byte[] contents, int maxDataLength, DeltaHandler handler) throws IOException {
+        Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+        for (int i = 0; i < weak.length; i++) {
+            List<Integer> blocks = blocksByChecksum.get(weak[i]);
+            if (blocks == null) {
+                blocksByChecksum.put(weak[i], blocks = new ArrayList<>(1));
+            }
+            blocks.add(i);
+        }
+
+        MessageDigest digest = newDigest();
+        long dataLength = 0;
+        int dataStart = 0;
+        int runStart = -1;
+        int runLength = 0;
+        int position = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+        while (!blocksByChecksum.isEmpty() && position + blockSize <= contents.length) {
+            if (!rolling) {
+                int checksum = checksum(contents, position, blockSize);
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+                rolling = true;
+            }
+            int block = findBlock(blocksByChecksum.get((b << 16) | a), digest, contents, position);
+            if (block != -1) {
+                if (position > dataStart) {
+                    flushRun(runStart, runLength, handler);
+                    runLength = 0;
+                    dataLength += sendData(contents, dataStart, position, maxDataLength, handler);
+                }
+                if (runLength > 0 && block == runStart + runLength) {
+                    runLength++;
+                } else {
+                    flushRun(runStart, runLength, handler);
+                    runStart = block;
+                    runLength = 1;
+                }
+                position += blockSize;
+                dataStart = position;
+                rolling = false;
+                continue;
+            }
+            // move the window a byte further
+            if (position + blockSize < contents.length) {
+                int out = contents[position] & 0xff;
+                int in = contents[position + blockSize] & 0xff;
+                a = (a - out + in) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+            }
+            position++;
+        }
+        if (contents.length > dataStart) {
+            flushRun(runStart, runLength, handler);
+            runLength = 0;
+            dataLength += sendData(contents, dataStart, contents.length, maxDataLength, handler);
+        }
+        flushRun(runStart, runLength, handler);
+        return dataLength;
+    }
+
+    private int findBlock(List<Integer> candidates, MessageDigest digest, byte[] contents, int position) {
+        if (candidates == null) {
+            return -1;
+        }
+        digest.update(contents, position, blockSize);
+        byte[] hash = digest.digest();
+        for (int candidate : candidates) {
+            if (Arrays.equals(hash, strong[candidate])) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static void flushRun(int runStart, int runLength, DeltaHandler handler) throws IOException {
+        if (runLength > 0) {
+            handler.copy(runStart, runLength);
+        }
+    }
+
+    private static long sendData(byte[] contents, int start, int end, int maxDataLength, DeltaHandler handler) throws IOException {
+        for (int offset = start; offset < end; offset += maxDataLength) {
+            handler.data(contents, offset, Math.min(maxDataLength, end - offset));
+        }
+        return end - start;
+    }
+
+    /**
+     * The weak checksum of rsync - two 16 bit sums, the second one weighting each byte by its distance from the end
+     */
+    static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public int getWeakChecksum(int block) {
+        return weak[block];
+    }
+
+    public byte[] getStrongChecksum(int block) {
+        return strong[block];
+    }
+}
@@ -0,0 +1,77 @@
+package bg.bozho.aardwark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Notices the changes within registered directories. Changes are reported the way the {@link WatchService} reports
+ * them - as a {@link WatchKey} per directory, with the create, modify and delete events of its entries (or an
+ * overflow, if events have been lost) - so all backends are handled alike. The watch service of the file system
+ * is used by default; where it is unreliable (network file systems, bind mounts of containers...) the directories
+ * can be polled instead.
+ */
+public abstract class ChangeDetector implements Closeable {
+
+    public static final String NATIVE = "native";
+    public static final String POLLING = "polling";
+
+    /**
+     * Starts watching the directory (but not the ones below it)
+     * @return the key the changes of the directory are reported with; the same one if it is already registered
+     */
+    public abstract WatchKey register(Path directory) throws IOException;
+
+    /**
+     * Waits for the next directory with changes
+     * @throws java.nio.file.ClosedWatchServiceException if the detector is closed
+     */
+    public abstract WatchKey take() throws InterruptedException;
+
+    @Override
+    public abstract void close() throws IOException;
+
+    public abstract String getName();
+
+    /**
+     * @return a detector relying on the given watch service, which must belong to the file system of the watched directories
+     */
+    public static ChangeDetector watching(WatchService watcher) {
+        return new WatchServiceDetector(watcher);
+    }
+
+    /**
+     * Registers the directories with the watch service of their file system (inotify on Linux, etc.)
+     */
+    static class WatchServiceDetector extends ChangeDetector {
+        private final WatchService watcher;
+
+        WatchServiceDetector(WatchService watcher) {
+            this.watcher = watcher;
+        }
+
+        @Override
+        public WatchKey register(Path directory) throws IOException {
+            return directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        }
+
+        @Override
+        public WatchKey take() throws InterruptedException {
+            return watcher.take();
+        }
+
+        @Override
+        public void close() throws IOException {
+            watcher.close();
+        }
+
+        @Override
+        public String getName() {
+            return NATIVE;
+        }
+    }
+}
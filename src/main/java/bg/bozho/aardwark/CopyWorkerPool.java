@@ -0,0 +1,91 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Performs the blocking file operations off the watch thread. Each worker has its own bounded queue and
+ * changes are assigned to a worker based on their target path, so that changes of the same file are
+ * applied in order, while different files are copied in parallel. The queues are bounded, and changes
+ * that don't fit have to be held back by the producer, rather than piling up in memory.
+ */
+public class CopyWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CopyWorkerPool.class);
+
+    public interface ChangeWorker {
+        void apply(FileChange change);
+    }
+
+    private final List<BlockingQueue<FileChange>> queues;
+    private final ExecutorService executor;
+
+    public CopyWorkerPool(String name, int workerCount, int queueCapacity, final ChangeWorker worker) {
+        workerCount = Math.max(1, workerCount);
+        int capacityPerWorker = Math.max(1, queueCapacity / workerCount);
+        queues = new ArrayList<>(workerCount);
+        executor = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactoryBuilder().setNameFormat("aardwark-copy-" + name + "-%d").setDaemon(true).build());
+        for (int i = 0; i < workerCount; i++) {
+            final BlockingQueue<FileChange> queue = new ArrayBlockingQueue<>(capacityPerWorker);
+            queues.add(queue);
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            FileChange change = queue.take();
+                            try {
+                                worker.apply(change);
+                            } catch (RuntimeException ex) {
+                                logger.warn("Failed to sync " + change, ex);
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        // return - the pool has been shutdown
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the change, unless the queue of the responsible worker is full
+     * @return whether the change was queued
+     */
+    public boolean offer(FileChange change) {
+        return queueFor(change.getTarget()).offer(change);
+    }
+
+    private BlockingQueue<FileChange> queueFor(Path target) {
+        int hash = target.hashCode();
+        hash ^= (hash >>> 16);
+        return queues.get((hash & Integer.MAX_VALUE) % queues.size());
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<FileChange> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public int getWorkerCount() {
+        return queues.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
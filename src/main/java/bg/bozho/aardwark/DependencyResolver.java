@@ -0,0 +1,277 @@
+package bg.bozho.aardwark;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Repository;
+import org.apache.maven.model.building.DefaultModelBuilderFactory;
+import org.apache.maven.model.building.DefaultModelBuildingRequest;
+import org.apache.maven.model.building.FileModelSource;
+import org.apache.maven.model.building.ModelBuilder;
+import org.apache.maven.model.building.ModelBuildingException;
+import org.apache.maven.model.building.ModelBuildingRequest;
+import org.apache.maven.model.building.ModelBuildingResult;
+import org.apache.maven.model.building.ModelSource;
+import org.apache.maven.model.resolution.ModelResolver;
+import org.apache.maven.model.resolution.UnresolvableModelException;
+import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
+import org.apache.maven.settings.Settings;
+import org.apache.maven.settings.io.xpp3.SettingsXpp3Reader;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactType;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.graph.Exclusion;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.resolution.DependencyResult;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.filter.DependencyFilterUtils;
+import org.eclipse.aether.util.repository.SimpleArtifactDescriptorPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the runtime dependencies of a project within the current JVM, using only the local repository
+ * (no downloads), which is much faster than running a maven build. Parent poms and imported boms are
+ * taken from the workspace or the local repository as well.
+ */
+public class DependencyResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(DependencyResolver.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path localRepository;
+    private final RepositorySystem repositorySystem;
+    private final ModelBuilder modelBuilder;
+
+    public DependencyResolver(Path localRepository) {
+        this.localRepository = localRepository;
+        this.repositorySystem = MavenRepositorySystemUtils.newServiceLocator().getService(RepositorySystem.class);
+        this.modelBuilder = new DefaultModelBuilderFactory().newInstance();
+    }
+
+    /**
+     * @return the local repository configured via maven.repo.local or the user's settings.xml, or the default one
+     */
+    public static Path getDefaultLocalRepository() {
+        String configured = System.getProperty("maven.repo.local");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        Path userHome = Paths.get(System.getProperty("user.home"));
+        Path settingsFile = userHome.resolve(".m2/settings.xml");
+        if (Files.exists(settingsFile)) {
+            try (Reader reader = Files.newBufferedReader(settingsFile, UTF8)) {
+                Settings settings = new SettingsXpp3Reader().read(reader);
+                if (settings.getLocalRepository() != null) {
+                    return Paths.get(settings.getLocalRepository());
+                }
+            } catch (Exception ex) {
+                logger.warn("Cannot read " + settingsFile + ", using the default local repository", ex);
+            }
+        }
+        return userHome.resolve(".m2/repository");
+    }
+
+    public Path getLocalRepository() {
+        return localRepository;
+    }
+
+    /**
+     * Builds the effective model of the project - with parents merged, properties interpolated and
+     * dependency management (including imported boms) applied
+     */
+    public Model buildEffectiveModel(Path projectPath) throws ModelBuildingException {
+        return buildModel(projectPath).getEffectiveModel();
+    }
+
+    /**
+     * @return the effective model along with the raw models it has been built from (the project and its parents)
+     */
+    public ModelBuildingResult buildModel(Path projectPath) throws ModelBuildingException {
+        DefaultModelBuildingRequest request = new DefaultModelBuildingRequest();
+        request.setPomFile(projectPath.resolve("pom.xml").toFile());
+        request.setModelResolver(new LocalRepositoryModelResolver());
+        request.setValidationLevel(ModelBuildingRequest.VALIDATION_LEVEL_MINIMAL);
+        request.setProcessPlugins(false);
+        request.setTwoPhaseBuilding(false);
+        request.setSystemProperties(System.getProperties());
+        return modelBuilder.build(request);
+    }
+
+    /**
+     * Resolves the artifacts that end up in WEB-INF/lib (compile and runtime scope, transitively).
+     * @return the resolved artifacts, with their files set
+     * @throws DependencyResolutionException if some of the artifacts are not available in the local repository
+     */
+    public List<Artifact> resolveRuntimeDependencies(Model effectiveModel) throws DependencyResolutionException {
+        DefaultRepositorySystemSession session = MavenRepositorySystemUtils.newSession();
+        session.setOffline(true);
+        session.setLocalRepositoryManager(repositorySystem.newLocalRepositoryManager(session,
+                new LocalRepository(localRepository.toFile())));
+        // a missing pom of a dependency (e.g. a workspace module that hasn't been installed) should not fail everything
+        session.setArtifactDescriptorPolicy(new SimpleArtifactDescriptorPolicy(true, true));
+
+        CollectRequest collectRequest = new CollectRequest();
+        for (org.apache.maven.model.Dependency dependency : effectiveModel.getDependencies()) {
+            collectRequest.addDependency(toAetherDependency(session, dependency));
+        }
+        if (effectiveModel.getDependencyManagement() != null) {
+            for (org.apache.maven.model.Dependency dependency : effectiveModel.getDependencyManagement().getDependencies()) {
+                collectRequest.addManagedDependency(toAetherDependency(session, dependency));
+            }
+        }
+        // offline, so these are never contacted, but the local repository tracks which repository each artifact came from
+        for (Repository repository : effectiveModel.getRepositories()) {
+            collectRequest.addRepository(new RemoteRepository.Builder(repository.getId(), "default", repository.getUrl()).build());
+        }
+
+        DependencyRequest request = new DependencyRequest(collectRequest,
+                DependencyFilterUtils.classpathFilter(JavaScopes.RUNTIME));
+        DependencyResult result = repositorySystem.resolveDependencies(session, request);
+        List<Artifact> artifacts = new ArrayList<>();
+        for (ArtifactResult artifactResult : result.getArtifactResults()) {
+            artifacts.add(artifactResult.getArtifact());
+        }
+        return artifacts;
+    }
+
+    /**
+     * Computes a stable fingerprint of the dependency set of the effective model - coordinates, versions, scopes
+     * and exclusions of the dependencies and the managed dependencies (which are inherited from parents and boms).
+     * Changes of the pom that don't affect dependencies (formatting, plugins, etc.) don't change the fingerprint.
+     * The order of the dependencies is kept, as it decides which version wins a conflict; the order of the managed
+     * dependencies doesn't matter.
+     * As snapshots may change without a change of the pom, the timestamps of their local repository files are included.
+     */
+    public String fingerprint(Model effectiveModel) {
+        return fingerprint(effectiveModel, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param workspaceArtifacts groupId:artifactId of the dependencies that are excluded, as their classes are synced from the workspace
+     */
+    public String fingerprint(Model effectiveModel, Set<String> workspaceArtifacts) {
+        List<String> workspaceLines = new ArrayList<>();
+        for (String artifact : workspaceArtifacts) {
+            workspaceLines.add("workspace " + artifact);
+        }
+        Collections.sort(workspaceLines);
+        List<String> managedLines = new ArrayList<>();
+        if (effectiveModel.getDependencyManagement() != null) {
+            for (org.apache.maven.model.Dependency dependency : effectiveModel.getDependencyManagement().getDependencies()) {
+                managedLines.add("managed " + describe(dependency));
+            }
+        }
+        Collections.sort(managedLines);
+
+        List<String> lines = new ArrayList<>(workspaceLines);
+        for (org.apache.maven.model.Dependency dependency : effectiveModel.getDependencies()) {
+            lines.add("dependency " + describe(dependency));
+        }
+        lines.addAll(managedLines);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String line : lines) {
+                digest.update(line.getBytes(UTF8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String describe(org.apache.maven.model.Dependency dependency) {
+        StringBuilder description = new StringBuilder(dependency.getManagementKey()).append(':')
+                .append(dependency.getVersion()).append(':').append(dependency.getScope()).append(':')
+                .append(dependency.isOptional());
+        List<String> exclusions = new ArrayList<>();
+        for (org.apache.maven.model.Exclusion exclusion : dependency.getExclusions()) {
+            exclusions.add(exclusion.getGroupId() + ":" + exclusion.getArtifactId());
+        }
+        Collections.sort(exclusions);
+        description.append(':').append(exclusions);
+        if (dependency.getSystemPath() != null) {
+            description.append(':').append(dependency.getSystemPath());
+        }
+        if (dependency.getVersion() != null && dependency.getVersion().endsWith("-SNAPSHOT")) {
+            Path directory = localRepository.resolve(dependency.getGroupId().replace('.', '/'))
+                    .resolve(dependency.getArtifactId()).resolve(dependency.getVersion());
+            description.append(':').append(directory.toFile().lastModified());
+            Path jar = directory.resolve(dependency.getArtifactId() + "-" + dependency.getVersion() + ".jar");
+            description.append(':').append(jar.toFile().lastModified());
+        }
+        return description.toString();
+    }
+
+    /**
+     * @return the file name under which the artifact is placed in WEB-INF/lib (the same as the one used by the
+     * maven-dependency-plugin)
+     */
+    public static String getLibraryFileName(Artifact artifact) {
+        StringBuilder name = new StringBuilder(artifact.getArtifactId()).append('-').append(artifact.getBaseVersion());
+        if (artifact.getClassifier() != null && !artifact.getClassifier().isEmpty()) {
+            name.append('-').append(artifact.getClassifier());
+        }
+        return name.append('.').append(artifact.getExtension()).toString();
+    }
+
+    private Dependency toAetherDependency(DefaultRepositorySystemSession session,
+            org.apache.maven.model.Dependency dependency) {
+        ArtifactType type = session.getArtifactTypeRegistry().get(dependency.getType());
+        Artifact artifact = new DefaultArtifact(dependency.getGroupId(), dependency.getArtifactId(),
+                dependency.getClassifier(), type == null ? dependency.getType() : null, dependency.getVersion(), type);
+        List<Exclusion> exclusions = new ArrayList<>();
+        for (org.apache.maven.model.Exclusion exclusion : dependency.getExclusions()) {
+            exclusions.add(new Exclusion(exclusion.getGroupId(), exclusion.getArtifactId(), "*", "*"));
+        }
+        return new Dependency(artifact, dependency.getScope(), dependency.isOptional(), exclusions);
+    }
+
+    /**
+     * Finds parent poms and imported boms in the local repository
+     */
+    private class LocalRepositoryModelResolver implements ModelResolver {
+        @Override
+        public ModelSource resolveModel(String groupId, String artifactId, String version) throws UnresolvableModelException {
+            Path pom = localRepository.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve(version)
+                    .resolve(artifactId + "-" + version + ".pom");
+            if (Files.notExists(pom)) {
+                throw new UnresolvableModelException("Not found in the local repository: " + pom, groupId, artifactId, version);
+            }
+            return new FileModelSource(pom.toFile());
+        }
+
+        @Override
+        public void addRepository(Repository repository) {
+            // offline - only the local repository is used
+        }
+
+        @Override
+        public ModelResolver newCopy() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings a target directory in line with a source directory, copying only files that have changed since they
+ * were last synced (according to the given manifest), and deleting targets whose source no longer exists.
+ * Directories are walked in parallel. The target can be local or remote; either way the state of a target
+ * directory is listed once, rather than looked up for each file.
+ */
+public class DirectorySync {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectorySync.class);
+
+    private final ForkJoinPool pool;
+    private final boolean hashContents;
+
+    public DirectorySync(int parallelism, boolean hashContents) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.hashContents = hashContents;
+    }
+
+    /**
+     * @param manifest the state of the files as of the last sync; updated with the new state
+     */
+    public Result sync(Path sourceRoot, Path targetRoot, SyncManifest manifest, TransferStrategy transferStrategy) {
+        return sync(sourceRoot, targetRoot, manifest, SyncTarget.local(transferStrategy));
+    }
+
+    /**
+     * @param manifest the state of the files as of the last sync; updated with the new state
+     */
+    public Result sync(Path sourceRoot, Path targetRoot, SyncManifest manifest, SyncTarget syncTarget) {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        if (Files.isDirectory(sourceRoot)) {
+            try {
+                syncTarget.createDirectories(targetRoot);
+                pool.invoke(new SyncDirectoryTask(sourceRoot, targetRoot, manifest, syncTarget, result, seen));
+            } catch (IOException ex) {
+                logger.warn("Failed to create " + targetRoot, ex);
+            }
+        }
+
+        // files that were synced before, but no longer exist in the source
+        for (String path : manifest.getPathsUnder(sourceRoot)) {
+            if (!seen.contains(path)) {
+                Path source = sourceRoot.getFileSystem().getPath(path);
+                try {
+                    syncTarget.delete(targetRoot.resolve(sourceRoot.relativize(source)));
+                    result.deleted.incrementAndGet();
+                } catch (IOException ex) {
+                    logger.warn("Failed to delete stale copy of " + source, ex);
+                }
+                manifest.remove(source);
+            }
+        }
+        flush(syncTarget);
+        result.durationMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Makes the target directory contain exactly the given files (e.g. jars in WEB-INF/lib), replacing
+     * only those that differ in size or modification time and deleting the rest
+     * @param sources the files to put in the directory, by target file name
+     */
+    public Result syncFiles(Map<String, Path> sources, Path targetDir, TransferStrategy transferStrategy) throws IOException {
+        return syncFiles(sources, targetDir, SyncTarget.local(transferStrategy));
+    }
+
+    /**
+     * @param sources the files to put in the directory, by target file name
+     */
+    public Result syncFiles(Map<String, Path> sources, Path targetDir, SyncTarget syncTarget) throws IOException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        syncTarget.createDirectories(targetDir);
+        Map<String, SyncTarget.FileState> targets = syncTarget.list(targetDir);
+        for (Map.Entry<String, SyncTarget.FileState> target : targets.entrySet()) {
+            if (!sources.containsKey(target.getKey()) && !target.getValue().isDirectory()) {
+                syncTarget.delete(targetDir.resolve(target.getKey()));
+                result.deleted.incrementAndGet();
+            }
+        }
+        for (Map.Entry<String, Path> entry : sources.entrySet()) {
+            Path source = entry.getValue();
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            SyncTarget.FileState targetState = targets.get(entry.getKey());
+            if (targetState != null && targetState.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                result.skipped.incrementAndGet();
+                continue;
+            }
+            syncTarget.transfer(source, targetDir.resolve(entry.getKey()));
+            result.copied.incrementAndGet();
+            result.bytes.addAndGet(attributes.size());
+        }
+        syncTarget.flush();
+        result.durationMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static void flush(SyncTarget syncTarget) {
+        try {
+            syncTarget.flush();
+        } catch (IOException ex) {
+            logger.warn("Failed to sync to " + syncTarget.getName(), ex);
+        }
+    }
+
+    /**
+     * @param targetState the state of the target file, or null if there is none
+     */
+    private void syncFile(Path source, BasicFileAttributes attributes, Path target, SyncTarget.FileState targetState,
+            SyncManifest manifest, SyncTarget syncTarget, Result result) throws IOException {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        SyncManifest.Entry previous = manifest.get(source);
+
+        if (targetState != null && !targetState.isDirectory()) {
+            if (previous != null && previous.matches(size, lastModified)) {
+                result.skipped.incrementAndGet();
+                return;
+            }
+            if (previous == null && targetState.matches(size, lastModified)) {
+                // not in the manifest yet, but an identical copy is already in place
+                manifest.put(source, new SyncManifest.Entry(size, lastModified, hashContents ? hash(source) : null));
+                result.skipped.incrementAndGet();
+                return;
+            }
+            if (hashContents && previous != null && previous.getHash() != null && previous.getSize() == size) {
+                // only the timestamp changed (e.g. a rebuild producing the same output)
+                String hash = hash(source);
+                if (hash.equals(previous.getHash())) {
+                    manifest.put(source, new SyncManifest.Entry(size, lastModified, hash));
+                    result.skipped.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        syncTarget.transfer(source, target);
+        manifest.put(source, new SyncManifest.Entry(size, lastModified, hashContents ? hash(source) : null));
+        result.copied.incrementAndGet();
+        result.bytes.addAndGet(size);
+    }
+
+    static String hash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private class SyncDirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path sourceDir;
+        private final Path targetDir;
+        private final SyncManifest manifest;
+        private final SyncTarget syncTarget;
+        private final Result result;
+        private final Set<String> seen;
+
+        SyncDirectoryTask(Path sourceDir, Path targetDir, SyncManifest manifest, SyncTarget syncTarget,
+                Result result, Set<String> seen) {
+            this.sourceDir = sourceDir;
+            this.targetDir = targetDir;
+            this.manifest = manifest;
+            this.syncTarget = syncTarget;
+            this.result = result;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            List<SyncDirectoryTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir)) {
+                // the state of all targets in one go, rather than a look-up per file (a round trip, for a remote target)
+                Map<String, SyncTarget.FileState> targets = syncTarget.list(targetDir);
+                for (Path source : stream) {
+                    String name = source.getFileName().toString();
+                    Path target = targetDir.resolve(name);
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+                        SyncTarget.FileState targetState = targets.get(name);
+                        if (attributes.isDirectory()) {
+                            if (targetState == null || !targetState.isDirectory()) {
+                                syncTarget.createDirectories(target);
+                            }
+                            subtasks.add(new SyncDirectoryTask(source, target, manifest, syncTarget, result, seen));
+                        } else {
+                            seen.add(source.toString());
+                            syncFile(source, attributes, target, targetState, manifest, syncTarget, result);
+                        }
+                    } catch (IOException ex) {
+                        logger.warn("Failed to sync " + source, ex);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to list " + sourceDir, ex);
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    public static class Result {
+        private final AtomicLong copied = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private long durationMillis;
+
+        public long getCopied() {
+            return copied.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return copied + " copied (" + bytes + " bytes), " + skipped + " unchanged and skipped, " + deleted
+                    + " deleted, in " + durationMillis + " ms";
+        }
+    }
+}
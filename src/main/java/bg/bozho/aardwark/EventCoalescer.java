@@ -0,0 +1,186 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bg.bozho.aardwark.FileChange.Kind;
+
+/**
+ * Sits between the watch loop and the copy step. A build usually writes the same file several times
+ * (CREATE followed by one or more MODIFY events), so instead of copying on every event, changes are
+ * merged per target path and handed over only after no new event has arrived for the quiet window
+ * (or the maximum delay has passed, so that a never-ending trickle of events still gets synced).
+ * A file that is created and deleted within the same window is not touched at all.
+ */
+public class EventCoalescer implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventCoalescer.class);
+
+    public interface ChangeHandler {
+        void handle(List<FileChange> changes);
+    }
+
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final ChangeHandler handler;
+
+    // insertion-ordered, so that parent directories are handled before the files within them
+    private final Map<Path, FileChange> pending = new LinkedHashMap<>();
+    private long firstEventNanos;
+    private long lastEventNanos;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+
+    public EventCoalescer(long quietMillis, long maxDelayMillis, ChangeHandler handler) {
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMillis, maxDelayMillis));
+        this.handler = handler;
+    }
+
+    public synchronized void offer(FileChange change) {
+        received.incrementAndGet();
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstEventNanos = now;
+        }
+        lastEventNanos = now;
+
+        FileChange previous = pending.get(change.getTarget());
+        if (previous == null) {
+            pending.put(change.getTarget(), change);
+            return;
+        }
+        merged.incrementAndGet();
+        Kind kind = merge(previous.getKind(), change.getKind());
+        if (kind == null) {
+            // the earlier event is dropped as well
+            merged.incrementAndGet();
+            cancelled.incrementAndGet();
+            pending.remove(change.getTarget());
+        } else {
+            pending.put(change.getTarget(), previous.withKind(kind));
+        }
+    }
+
+    /**
+     * Puts back changes that were flushed, but could not be handled yet. They are merged with any changes
+     * that arrived in the meantime and are handed over again on the next run, without waiting for the window to settle.
+     */
+    public synchronized void requeue(List<FileChange> changes) {
+        emitted.addAndGet(-changes.size());
+        for (FileChange change : changes) {
+            FileChange newer = pending.get(change.getTarget());
+            if (newer == null) {
+                pending.put(change.getTarget(), change);
+                continue;
+            }
+            Kind kind = merge(change.getKind(), newer.getKind());
+            if (kind == null) {
+                pending.remove(change.getTarget());
+            } else {
+                pending.put(change.getTarget(), newer.withKind(kind));
+            }
+        }
+        firstEventNanos = System.nanoTime() - maxDelayNanos;
+    }
+
+    /**
+     * Combines the pending kind of change with a newly arrived one.
+     * @return the resulting kind, or null if the two cancel each other out
+     */
+    static Kind merge(Kind previous, Kind next) {
+        if (next == Kind.DELETE) {
+            // created and deleted within the window - the target never needs to know
+            return previous == Kind.CREATE ? null : Kind.DELETE;
+        }
+        if (previous == Kind.CREATE) {
+            return Kind.CREATE;
+        }
+        // deleted and re-created, or modified several times - copy once
+        return Kind.MODIFY;
+    }
+
+    /**
+     * Invoked periodically; hands over the pending changes if the window has settled
+     */
+    @Override
+    public void run() {
+        try {
+            flush(false);
+        } catch (RuntimeException ex) {
+            // must not propagate, otherwise the scheduled flushing stops
+            logger.error("Failed to handle coalesced changes", ex);
+        }
+    }
+
+    public void flush(boolean force) {
+        List<FileChange> changes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!force && now - lastEventNanos < quietNanos && now - firstEventNanos < maxDelayNanos) {
+                return;
+            }
+            changes = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        emitted.addAndGet(changes.size());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Flushing " + changes.size() + " changes. Events received: " + received.get()
+                    + ", merged away: " + merged.get() + ", cancelled create/delete pairs: " + cancelled.get());
+        }
+        handler.handle(changes);
+    }
+
+    /**
+     * Drops the pending changes of files within the given directory, e.g. because the directory is synced in bulk instead
+     * @return the number of dropped changes
+     */
+    public synchronized int discard(Path directory) {
+        int discarded = 0;
+        for (Iterator<FileChange> iterator = pending.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().getSource().startsWith(directory)) {
+                iterator.remove();
+                discarded++;
+            }
+        }
+        return discarded;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of events that did not result in a change of their own
+     */
+    public long getMergedCount() {
+        return merged.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    public long getEmittedCount() {
+        return emitted.get();
+    }
+}
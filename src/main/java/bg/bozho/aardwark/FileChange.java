@@ -0,0 +1,86 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+
+import bg.bozho.aardwark.StartupListener.WatchableDirectory;
+
+/**
+ * A single pending change of a watched file, together with the location in the webapp it maps to.
+ */
+public class FileChange {
+
+    public enum Kind {
+        CREATE, MODIFY, DELETE
+    }
+
+    /**
+     * What kind of file changed, which determines how soon it is synced. Classes (and other files that go
+     * to WEB-INF/classes) and templates are picked up by the running application, so they are synced
+     * ahead of static resources, which may be large and are usually not waited for.
+     */
+    public enum Lane {
+        CLASSES, TEMPLATES, STATIC;
+
+        public boolean isPriority() {
+            return this != STATIC;
+        }
+    }
+
+    private final Kind kind;
+    private final Path source;
+    private final Path target;
+    private final WatchableDirectory watchableDirectory;
+    private final Lane lane;
+    // when the (first) event of the change was received, for measuring how long it takes to sync it
+    private final long detectedNanos;
+
+    public FileChange(Kind kind, Path source, Path target, WatchableDirectory watchableDirectory) {
+        this(kind, source, target, watchableDirectory, Lane.STATIC);
+    }
+
+    public FileChange(Kind kind, Path source, Path target, WatchableDirectory watchableDirectory, Lane lane) {
+        this(kind, source, target, watchableDirectory, lane, System.nanoTime());
+    }
+
+    private FileChange(Kind kind, Path source, Path target, WatchableDirectory watchableDirectory, Lane lane, long detectedNanos) {
+        this.kind = kind;
+        this.source = source;
+        this.target = target;
+        this.watchableDirectory = watchableDirectory;
+        this.lane = lane;
+        this.detectedNanos = detectedNanos;
+    }
+
+    public FileChange withKind(Kind kind) {
+        return new FileChange(kind, source, target, watchableDirectory, lane, detectedNanos);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public WatchableDirectory getWatchableDirectory() {
+        return watchableDirectory;
+    }
+
+    public Lane getLane() {
+        return lane;
+    }
+
+    public long getDetectedNanos() {
+        return detectedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + source + " -> " + target;
+    }
+}
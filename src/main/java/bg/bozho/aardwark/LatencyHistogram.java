@@ -0,0 +1,65 @@
+package bg.bozho.aardwark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in milliseconds, with power-of-two buckets (0-1 ms, 1-2 ms, 2-4 ms, ...).
+ * Percentiles are therefore approximate - they are reported as the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 24;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        counts.incrementAndGet(bucket);
+        total.addAndGet(millis);
+        long currentMax;
+        while (millis > (currentMax = max.get()) && !max.compareAndSet(currentMax, millis)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound (in milliseconds) of the bucket the percentile falls into, but no more than the maximum
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == 0 ? 0 : 1L << i, max.get());
+            }
+        }
+        return max.get();
+    }
+}
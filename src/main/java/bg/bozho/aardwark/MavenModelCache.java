@@ -0,0 +1,291 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.ModelBuildingException;
+import org.apache.maven.model.building.ModelBuildingResult;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The poms of the workspace, parsed once and shared by all projects - a reactor and its parents are usually
+ * visited many times on startup (for each project, and for each level of the walk up to the workspace root).
+ * The modules of a reactor are indexed by artifactId once, so finding the modules a project depends on is a matter of
+ * lookups. Models are keyed by the path of the pom and stay valid as long as its size and modification time are
+ * unchanged; effective models and module indexes, as long as those of all workspace poms they have been built from
+ * are. The models are shared, so they must not be modified.
+ */
+public class MavenModelCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MavenModelCache.class);
+
+    private final ConcurrentMap<Path, RawEntry> models = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, EffectiveEntry> effectiveModels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, ModuleEntry> moduleIndexes = new ConcurrentHashMap<>();
+
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @return the model of the pom in the project directory, as written (no parents, no interpolation), or null if there is no pom
+     */
+    public Model getModel(Path projectDir) throws IOException {
+        RawEntry entry = getEntry(projectDir);
+        return entry != null ? entry.model : null;
+    }
+
+    /**
+     * @return the effective model of the project (see {@link DependencyResolver#buildEffectiveModel(Path)}), built
+     * with the given resolver if it isn't cached
+     */
+    public Model getEffectiveModel(Path projectDir, DependencyResolver dependencyResolver) throws ModelBuildingException {
+        Path pom = getPomPath(projectDir);
+        EffectiveEntry entry = effectiveModels.get(pom);
+        if (entry == null) {
+            effectiveModels.putIfAbsent(pom, new EffectiveEntry());
+            entry = effectiveModels.get(pom);
+        }
+        synchronized (entry) {
+            if (entry.model != null && entry.isCurrent()) {
+                hits.incrementAndGet();
+                return entry.model;
+            }
+            ModelBuildingResult result = dependencyResolver.buildModel(projectDir);
+            built.incrementAndGet();
+            // the workspace poms the model is made of; those taken from the local repository are not expected to change
+            Map<Path, Stamp> sources = new HashMap<>();
+            for (String modelId : result.getModelIds()) {
+                Model rawModel = result.getRawModel(modelId);
+                if (rawModel != null && rawModel.getPomFile() != null) {
+                    Path source = rawModel.getPomFile().toPath().toAbsolutePath().normalize();
+                    sources.put(source, Stamp.of(source));
+                }
+            }
+            entry.sources = sources;
+            entry.model = result.getEffectiveModel();
+            return entry.model;
+        }
+    }
+
+    /**
+     * @return the directories of the modules of the reactor in the directory that have no modules of their own, by
+     * artifactId, or an empty map if there is no pom. Modules without a pom are left out
+     */
+    public Map<String, List<Path>> getModules(Path reactorDir) throws IOException {
+        Path pom = getPomPath(reactorDir);
+        ModuleEntry entry = moduleIndexes.get(pom);
+        if (entry == null) {
+            moduleIndexes.putIfAbsent(pom, new ModuleEntry());
+            entry = moduleIndexes.get(pom);
+        }
+        synchronized (entry) {
+            if (entry.modules != null && entry.isCurrent()) {
+                return entry.modules;
+            }
+            Map<String, List<Path>> modules = new HashMap<>();
+            Map<Path, Stamp> sources = new HashMap<>();
+            indexModules(reactorDir.toAbsolutePath().normalize(), modules, sources);
+            entry.sources = sources;
+            entry.modules = Collections.unmodifiableMap(modules);
+            return entry.modules;
+        }
+    }
+
+    private void indexModules(Path projectDir, Map<String, List<Path>> modules, Map<Path, Stamp> sources) throws IOException {
+        RawEntry entry = getEntry(projectDir);
+        // a missing pom is recorded as well, so that the index is rebuilt once it appears
+        sources.put(getPomPath(projectDir), entry != null ? entry.stamp : null);
+        if (entry == null) {
+            return;
+        }
+        List<String> children = entry.model.getModules();
+        if (children == null || children.isEmpty()) {
+            List<Path> paths = modules.get(entry.model.getArtifactId());
+            if (paths == null) {
+                modules.put(entry.model.getArtifactId(), paths = new ArrayList<>());
+            }
+            paths.add(projectDir);
+            return;
+        }
+        for (String child : children) {
+            Path childDir = projectDir.resolve(child).normalize();
+            // guards against modules pointing back up the tree
+            if (!sources.containsKey(getPomPath(childDir))) {
+                indexModules(childDir, modules, sources);
+            }
+        }
+    }
+
+    /**
+     * Drops the models the pom is part of - its own, and the effective models of the projects inheriting from it.
+     * Needed only if the pom is known to have changed, otherwise changes are detected on access.
+     */
+    public void invalidate(Path pomFile) {
+        Path pom = pomFile.toAbsolutePath().normalize();
+        models.remove(pom);
+        int invalidated = 0;
+        for (Iterator<Map.Entry<Path, EffectiveEntry>> it = effectiveModels.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().dependsOn(pom)) {
+                it.remove();
+                invalidated++;
+            }
+        }
+        for (Iterator<Map.Entry<Path, ModuleEntry>> it = moduleIndexes.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().dependsOn(pom)) {
+                it.remove();
+            }
+        }
+        logger.debug("Invalidated the model of " + pom + " and " + invalidated + " effective models");
+    }
+
+    public long getParseCount() {
+        return parsed.get();
+    }
+
+    public long getBuildCount() {
+        return built.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    private RawEntry getEntry(Path projectDir) throws IOException {
+        Path pom = getPomPath(projectDir);
+        RawEntry entry = models.get(pom);
+        if (entry == null) {
+            models.putIfAbsent(pom, new RawEntry());
+            entry = models.get(pom);
+        }
+        synchronized (entry) {
+            // stamped before reading, so that a change while reading is noticed next time
+            Stamp stamp = Stamp.of(pom);
+            if (stamp == null) {
+                models.remove(pom, entry);
+                return null;
+            }
+            if (stamp.equals(entry.stamp)) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            entry.model = parse(pom);
+            entry.stamp = stamp;
+            parsed.incrementAndGet();
+            return entry;
+        }
+    }
+
+    private static Path getPomPath(Path projectDir) {
+        return projectDir.resolve("pom.xml").toAbsolutePath().normalize();
+    }
+
+    private static Model parse(Path pom) throws IOException {
+        try (InputStream in = Files.newInputStream(pom)) {
+            return new MavenXpp3Reader().read(in);
+        } catch (XmlPullParserException e) {
+            throw new IllegalStateException("Cannot read maven model " + pom, e);
+        }
+    }
+
+    private static class RawEntry {
+        private Stamp stamp;
+        private Model model;
+    }
+
+    private static class EffectiveEntry {
+        private Model model;
+        private volatile Map<Path, Stamp> sources = Collections.emptyMap();
+
+        boolean isCurrent() {
+            for (Map.Entry<Path, Stamp> source : sources.entrySet()) {
+                if (!source.getValue().equals(Stamp.of(source.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean dependsOn(Path pom) {
+            return sources.containsKey(pom);
+        }
+    }
+
+    private static class ModuleEntry {
+        private Map<String, List<Path>> modules;
+        private volatile Map<Path, Stamp> sources = Collections.emptyMap();
+
+        boolean isCurrent() {
+            for (Map.Entry<Path, Stamp> source : sources.entrySet()) {
+                if (!Objects.equals(source.getValue(), Stamp.of(source.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean dependsOn(Path pom) {
+            return sources.containsKey(pom);
+        }
+    }
+
+    /**
+     * The size and modification time of a pom when it was read
+     */
+    private static class Stamp {
+        private final long size;
+        private final long lastModified;
+
+        Stamp(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the current stamp of the file, or null if it doesn't exist
+         */
+        static Stamp of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (NoSuchFileException ex) {
+                return null;
+            } catch (IOException ex) {
+                logger.debug("Cannot read the attributes of " + file, ex);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) obj;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size * 31 + lastModified);
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects changes by scanning the registered directories periodically, for file systems on which the watch service
+ * misses or delays events (NFS, bind mounts of Docker on Linux...). A directory is only listed again if its
+ * modification time has changed, as that is the case whenever entries are added, removed or renamed; otherwise only
+ * the files already known in it are checked for a new size or modification time (which doesn't touch the
+ * directory). Directories are scanned in parallel. The interval grows while nothing changes, up to the maximum, and
+ * drops back as soon as something does; it also never gets shorter than twice the time a scan takes, so polling
+ * a large tree cannot keep the CPU busy.
+ */
+public class PollingChangeDetector extends ChangeDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(PollingChangeDetector.class);
+
+    /**
+     * More events are reported as an overflow, as with the watch service
+     */
+    static final int MAX_EVENTS = 512;
+    /**
+     * Directories modified that recently are listed regardless of their modification time, as entries added within
+     * the resolution of the timestamp would not change it
+     */
+    static final long RECENT_MILLIS = 2000;
+    private static final int DIRECTORIES_PER_TASK = 32;
+
+    private final long intervalMillis;
+    private final long maxIntervalMillis;
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<Path, PollingKey> keys = new ConcurrentHashMap<>();
+    private final BlockingQueue<PollingKey> signalled = new LinkedBlockingQueue<>();
+    // put in the queue on close, to wake up the taking thread
+    private final PollingKey closedMarker = new PollingKey(null);
+    private volatile boolean closed;
+    private Thread poller;
+
+    private volatile long scanCount;
+    private volatile long lastScanMillis;
+    private volatile long currentIntervalMillis;
+
+    /**
+     * @param intervalMillis the interval between scans while there are changes
+     * @param maxIntervalMillis the interval the scans slow down to while there are none
+     * @param parallelism the number of threads scanning directories
+     */
+    public PollingChangeDetector(long intervalMillis, long maxIntervalMillis, int parallelism) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.maxIntervalMillis = Math.max(this.intervalMillis, maxIntervalMillis);
+        this.currentIntervalMillis = this.intervalMillis;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Starts scanning in the background
+     */
+    public synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "aardwark-poll");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private void poll() {
+        while (!closed) {
+            try {
+                int changed = scan();
+                currentIntervalMillis = nextInterval(currentIntervalMillis, changed, lastScanMillis);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Scanned " + keys.size() + " directories in " + lastScanMillis + " ms, " + changed
+                            + " changed. Next scan in " + currentIntervalMillis + " ms");
+                }
+                Thread.sleep(currentIntervalMillis);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                if (!closed) {
+                    logger.warn("Failed to scan for changes", ex);
+                }
+            }
+        }
+    }
+
+    long nextInterval(long current, int changed, long scanMillis) {
+        long next = changed > 0 ? intervalMillis : Math.min(maxIntervalMillis, current + current / 2 + 1);
+        return Math.max(next, scanMillis * 2);
+    }
+
+    /**
+     * Scans all registered directories once, signalling those that have changed
+     * @return the number of changed directories
+     */
+    int scan() {
+        long start = System.currentTimeMillis();
+        List<PollingKey> directories = new ArrayList<>(keys.values());
+        AtomicInteger changed = new AtomicInteger();
+        pool.invoke(new ScanTask(directories, 0, directories.size(), changed));
+        scanCount++;
+        lastScanMillis = System.currentTimeMillis() - start;
+        return changed.get();
+    }
+
+    @Override
+    public WatchKey register(Path directory) throws IOException {
+        if (closed) {
+            throw new ClosedWatchServiceException();
+        }
+        PollingKey key = keys.get(directory);
+        if (key != null && key.isValid()) {
+            return key;
+        }
+        key = new PollingKey(directory);
+        key.list();
+        PollingKey existing = keys.putIfAbsent(directory, key);
+        if (existing != null) {
+            if (existing.isValid()) {
+                return existing;
+            }
+            keys.put(directory, key);
+        }
+        return key;
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        PollingKey key = signalled.take();
+        if (key == closedMarker) {
+            signalled.add(closedMarker); // for other taking threads
+            throw new ClosedWatchServiceException();
+        }
+        return key;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (poller != null) {
+                poller.interrupt();
+            }
+        }
+        pool.shutdownNow();
+        keys.clear();
+        signalled.add(closedMarker);
+    }
+
+    @Override
+    public String getName() {
+        return POLLING;
+    }
+
+    public int getDirectoryCount() {
+        return keys.size();
+    }
+
+    public long getScanCount() {
+        return scanCount;
+    }
+
+    /**
+     * @return how long the last scan took
+     */
+    public long getLastScanMillis() {
+        return lastScanMillis;
+    }
+
+    public long getCurrentIntervalMillis() {
+        return currentIntervalMillis;
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<PollingKey> directories;
+        private final int from;
+        private final int to;
+        private final AtomicInteger changed;
+
+        ScanTask(List<PollingKey> directories, int from, int to, AtomicInteger changed) {
+            this.directories = directories;
+            this.from = from;
+            this.to = to;
+            this.changed = changed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > DIRECTORIES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(directories, from, middle, changed), new ScanTask(directories, middle, to, changed));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (directories.get(i).scan()) {
+                    changed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * The size and modification time of an entry, as of the last scan
+     */
+    private static class EntryState {
+        // kept, so that checking the entry doesn't have to resolve it again
+        private final Path path;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        EntryState(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.directory = attributes.isDirectory();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean differs(EntryState other) {
+            return !directory && (size != other.size || lastModified != other.lastModified);
+        }
+    }
+
+    /**
+     * A registered directory, with the state of its entries. Behaves like the keys of the watch service:
+     * once signalled, it is not queued again until it is reset, and events accumulate in the meantime
+     */
+    private class PollingKey implements WatchKey {
+        private final Path directory;
+        private volatile boolean valid = true;
+        // only accessed by the thread scanning the directory
+        private long directoryModified;
+        private Map<String, EntryState> entries = new HashMap<>();
+        // guarded by this
+        private List<WatchEvent<?>> pending = new ArrayList<>();
+        private boolean overflow;
+        private boolean queued;
+
+        PollingKey(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * @return true if there were changes
+         */
+        boolean scan() {
+            if (!valid) {
+                return false;
+            }
+            List<WatchEvent<?>> events = new ArrayList<>();
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+                long modified = attributes.lastModifiedTime().toMillis();
+                if (!attributes.isDirectory()) {
+                    throw new NotDirectoryException(directory.toString());
+                }
+                if (modified != directoryModified || System.currentTimeMillis() - modified < RECENT_MILLIS) {
+                    Map<String, EntryState> previous = entries;
+                    list();
+                    diff(previous, events);
+                } else {
+                    checkFiles(events);
+                }
+            } catch (NoSuchFileException | NotDirectoryException ex) {
+                // gone - reported like the watch service does, as a key that cannot be reset
+                cancel();
+                signal(events);
+                return true;
+            } catch (IOException ex) {
+                logger.warn("Failed to scan " + directory, ex);
+                return false;
+            }
+            if (events.isEmpty()) {
+                return false;
+            }
+            signal(events);
+            return true;
+        }
+
+        void list() throws IOException {
+            directoryModified = Files.getLastModifiedTime(directory).toMillis();
+            Map<String, EntryState> current = new HashMap<>(Math.max(16, entries.size() * 2));
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    try {
+                        current.put(entry.getFileName().toString(), new EntryState(entry, Files.readAttributes(entry, BasicFileAttributes.class)));
+                    } catch (NoSuchFileException ex) {
+                        // deleted in the meantime
+                    }
+                }
+            }
+            entries = current;
+        }
+
+        private void diff(Map<String, EntryState> previous, List<WatchEvent<?>> events) {
+            for (Map.Entry<String, EntryState> entry : entries.entrySet()) {
+                EntryState old = previous.get(entry.getKey());
+                if (old == null) {
+                    events.add(new Event<>(StandardWatchEventKinds.ENTRY_CREATE, entry.getValue().path.getFileName()));
+                } else if (entry.getValue().differs(old)) {
+                    events.add(new Event<>(StandardWatchEventKinds.ENTRY_MODIFY, entry.getValue().path.getFileName()));
+                }
+            }
+            for (Map.Entry<String, EntryState> entry : previous.entrySet()) {
+                if (!entries.containsKey(entry.getKey())) {
+                    events.add(new Event<>(StandardWatchEventKinds.ENTRY_DELETE, entry.getValue().path.getFileName()));
+                }
+            }
+        }
+
+        /**
+         * Checks the known files only - their contents can change without the directory changing
+         */
+        private void checkFiles(List<WatchEvent<?>> events) throws IOException {
+            for (Iterator<Map.Entry<String, EntryState>> it = entries.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, EntryState> entry = it.next();
+                if (entry.getValue().directory) {
+                    continue;
+                }
+                Path file = entry.getValue().path;
+                try {
+                    EntryState current = new EntryState(file, Files.readAttributes(file, BasicFileAttributes.class));
+                    if (current.differs(entry.getValue()) || current.directory) {
+                        entry.setValue(current);
+                        events.add(new Event<>(StandardWatchEventKinds.ENTRY_MODIFY, file.getFileName()));
+                    }
+                } catch (NoSuchFileException ex) {
+                    it.remove();
+                    events.add(new Event<>(StandardWatchEventKinds.ENTRY_DELETE, file.getFileName()));
+                }
+            }
+        }
+
+        private synchronized void signal(List<WatchEvent<?>> events) {
+            if (overflow) {
+                // the events are lost anyway
+            } else if (pending.size() + events.size() > MAX_EVENTS) {
+                pending.clear();
+                pending.add(new Event<>(StandardWatchEventKinds.OVERFLOW, null));
+                overflow = true;
+            } else {
+                pending.addAll(events);
+            }
+            if (!queued) {
+                queued = true;
+                signalled.add(this);
+            }
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && !closed;
+        }
+
+        @Override
+        public synchronized List<WatchEvent<?>> pollEvents() {
+            List<WatchEvent<?>> events = pending;
+            pending = new ArrayList<>();
+            overflow = false;
+            return events;
+        }
+
+        @Override
+        public synchronized boolean reset() {
+            if (!isValid()) {
+                return false;
+            }
+            if (pending.isEmpty()) {
+                queued = false;
+            } else {
+                signalled.add(this);
+            }
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            valid = false;
+            keys.remove(directory, this);
+        }
+
+        @Override
+        public Watchable watchable() {
+            return directory;
+        }
+    }
+
+    private static class Event<T> implements WatchEvent<T> {
+        private final Kind<T> kind;
+        private final T context;
+
+        Event(Kind<T> kind, T context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @Override
+        public Kind<T> kind() {
+            return kind;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public T context() {
+            return context;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package bg.bozho.aardwark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The dispatch queue of a single project: events routed to the project are coalesced and then handed over
+ * to the project's own copy workers. Handing over never blocks - if the workers are behind, the remaining
+ * changes stay with the coalescer (where they keep being merged) and are retried on the next run. That way
+ * a busy project neither blocks the shared watch thread nor the dispatching of the other projects.
+ * Classes and templates are handed to a separate set of workers than static resources, so that a large
+ * asset being copied doesn't delay the class that is about to be hot-swapped. During a clean build, events are
+ * held off altogether by the {@link RebuildDetector}.
+ * With a {@link BatchPublisher}, each settled batch is handed over as a whole instead.
+ */
+public class ProjectDispatcher implements Runnable {
+
+    private final String webappName;
+    private final EventCoalescer coalescer;
+    private final CopyWorkerPool copyWorkers;
+    private final CopyWorkerPool staticWorkers;
+    private final BatchPublisher publisher;
+    private final RebuildDetector rebuildDetector;
+
+    public ProjectDispatcher(String webappName, SyncSettings settings, CopyWorkerPool.ChangeWorker worker) {
+        this(webappName, settings, worker, null);
+    }
+
+    /**
+     * @param publisher if not null, changes are published in batches rather than passed to the worker one by one
+     */
+    public ProjectDispatcher(String webappName, SyncSettings settings, CopyWorkerPool.ChangeWorker worker, BatchPublisher publisher) {
+        this(webappName, settings, worker, publisher, null);
+    }
+
+    /**
+     * @param rebuildHandler syncs the projects of the webapp in bulk after a rebuild
+     */
+    public ProjectDispatcher(String webappName, SyncSettings settings, CopyWorkerPool.ChangeWorker worker, BatchPublisher publisher,
+            RebuildDetector.RebuildHandler rebuildHandler) {
+        this.webappName = webappName;
+        this.publisher = publisher;
+        // a batch should rather cover a whole build
+        long defaultMaxDelay = publisher != null ? 30000 : 2000;
+        this.coalescer = new EventCoalescer(getQuietMillis(settings),
+                settings.getLong(SyncSettings.COALESCE_MAX_DELAY_MILLIS, defaultMaxDelay), new EventCoalescer.ChangeHandler() {
+                    @Override
+                    public void handle(List<FileChange> changes) {
+                        dispatch(changes);
+                    }
+                });
+        this.copyWorkers = new CopyWorkerPool(webappName,
+                settings.getInt(SyncSettings.COPY_WORKERS, Math.min(2, Runtime.getRuntime().availableProcessors())),
+                settings.getInt(SyncSettings.COPY_QUEUE_CAPACITY, 1024), worker);
+        this.rebuildDetector = new RebuildDetector(webappName, settings.getInt(SyncSettings.REBUILD_DELETE_THRESHOLD, 500),
+                settings.getLong(SyncSettings.REBUILD_DELETE_WINDOW_MILLIS, 1000), settings.getLong(SyncSettings.REBUILD_QUIET_MILLIS, 2000),
+                settings.getLong(SyncSettings.REBUILD_MAX_WAIT_MILLIS, 60000), coalescer, rebuildHandler);
+        this.staticWorkers = new CopyWorkerPool(webappName + "-static", settings.getInt(SyncSettings.COPY_STATIC_WORKERS, 1),
+                settings.getInt(SyncSettings.COPY_QUEUE_CAPACITY, 1024), worker);
+    }
+
+    public static long getQuietMillis(SyncSettings settings) {
+        return settings.getLong(SyncSettings.COALESCE_QUIET_MILLIS, 200);
+    }
+
+    public void offer(FileChange change) {
+        coalescer.offer(change);
+    }
+
+    /**
+     * Invoked periodically, to hand over the settled changes
+     */
+    @Override
+    public void run() {
+        rebuildDetector.run();
+        coalescer.run();
+    }
+
+    private void dispatch(List<FileChange> changes) {
+        if (publisher != null) {
+            if (!publisher.offer(changes)) {
+                // the previous batch is still being published
+                coalescer.requeue(changes);
+            }
+            return;
+        }
+        // the priority lane goes first. A file always belongs to the same lane, so its changes stay in order
+        List<FileChange> heldBack = new ArrayList<>();
+        dispatch(changes, true, copyWorkers, heldBack);
+        dispatch(changes, false, staticWorkers, heldBack);
+        if (!heldBack.isEmpty()) {
+            coalescer.requeue(heldBack);
+        }
+    }
+
+    private void dispatch(List<FileChange> changes, boolean priority, CopyWorkerPool workers, List<FileChange> heldBack) {
+        boolean full = false;
+        for (FileChange change : changes) {
+            if (change.getLane().isPriority() != priority) {
+                continue;
+            }
+            if (full || !workers.offer(change)) {
+                full = true;
+                heldBack.add(change);
+            }
+        }
+    }
+
+    public void shutdown() {
+        copyWorkers.shutdown();
+        staticWorkers.shutdown();
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    public String getWebappName() {
+        return webappName;
+    }
+
+    public EventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public CopyWorkerPool getCopyWorkers() {
+        return copyWorkers;
+    }
+
+    public RebuildDetector getRebuildDetector() {
+        return rebuildDetector;
+    }
+
+    public CopyWorkerPool getStaticWorkers() {
+        return staticWorkers;
+    }
+}
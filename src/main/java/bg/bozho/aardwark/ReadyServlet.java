@@ -0,0 +1,68 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tells whether the project given with the <code>project</code> parameter (or all projects, if none is given)
+ * has been synced and is being watched - 200 if so, 503 otherwise. With <code>timeoutMillis</code> the request
+ * waits for the projects up to that time, so that it can be used by the target webapp (or by scripts) before serving
+ * its first request
+ */
+@WebServlet("/ready")
+public class ReadyServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        @SuppressWarnings("unchecked")
+        Map<String, SyncMetrics> metrics = (Map<String, SyncMetrics>) getServletContext().getAttribute(StartupListener.METRICS_ATTRIBUTE);
+        CountDownLatch initialization = (CountDownLatch) getServletContext().getAttribute(StartupListener.INITIALIZATION_ATTRIBUTE);
+        String project = request.getParameter("project");
+        long deadline = System.currentTimeMillis() + getTimeout(request);
+
+        boolean ready = true;
+        try {
+            // the webapp name of a project is known only once its pom is read - wait for all projects, if not there yet
+            if (initialization != null && (project == null || metrics == null || !metrics.containsKey(project))) {
+                initialization.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            if (metrics == null || (project != null && !metrics.containsKey(project))) {
+                ready = initialization != null && initialization.getCount() == 0 && project == null;
+            } else if (project != null) {
+                ready = metrics.get(project).awaitSettled(Math.max(0, deadline - System.currentTimeMillis())) == SyncMetrics.State.READY;
+            } else {
+                for (SyncMetrics projectMetrics : metrics.values()) {
+                    ready &= projectMetrics.awaitSettled(Math.max(0, deadline - System.currentTimeMillis())) == SyncMetrics.State.READY;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ready = false;
+        }
+
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-cache");
+        if (!ready) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        response.getWriter().write(ready ? "READY" : "NOT READY");
+    }
+
+    private long getTimeout(HttpServletRequest request) {
+        String timeout = request.getParameter("timeoutMillis");
+        try {
+            return timeout != null ? Math.max(0, Long.parseLong(timeout)) : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bg.bozho.aardwark.StartupListener.WatchableDirectory;
+
+/**
+ * Recognizes a clean build (mvn clean, or the IDE rebuilding everything) of the projects of a webapp - either
+ * a synced directory (or one leading to it, e.g. target/) is deleted, or files are deleted faster than the
+ * threshold. Replaying such a build file by file would first empty the webapp and then fill it again, so
+ * instead the events of the webapp are ignored until the build is over: no events have arrived for the quiet
+ * period and the deleted directories exist again (or the maximum wait has passed). The projects are then
+ * synced in bulk, by the handler.
+ */
+public class RebuildDetector implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RebuildDetector.class);
+
+    public interface RebuildHandler {
+        /**
+         * Invoked once the build is over, with (a directory of) each project that changed during it
+         */
+        void rebuildFinished(Collection<WatchableDirectory> projects);
+    }
+
+    private final String webappName;
+    private final int deleteThreshold;
+    private final long deleteWindowNanos;
+    private final long quietNanos;
+    private final long maxWaitNanos;
+    private final EventCoalescer coalescer;
+    private final RebuildHandler handler;
+
+    // guarded by this. The projects being rebuilt, by project path
+    private final Map<Path, WatchableDirectory> rebuilding = new LinkedHashMap<>();
+    private final Set<Path> deletedRoots = new HashSet<>();
+    private long startNanos;
+    private long lastEventNanos;
+    private long windowStartNanos;
+    private int windowDeletes;
+
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * @param deleteThreshold the number of deletes within the window that is considered a rebuild; 0 or less to only
+     * recognize deleted directories
+     * @param coalescer the pending changes of a project being rebuilt are dropped from it
+     * @param handler may be null, if nothing has to be done after a rebuild
+     */
+    public RebuildDetector(String webappName, int deleteThreshold, long deleteWindowMillis, long quietMillis, long maxWaitMillis,
+            EventCoalescer coalescer, RebuildHandler handler) {
+        this.webappName = webappName;
+        this.deleteThreshold = deleteThreshold;
+        this.deleteWindowNanos = TimeUnit.MILLISECONDS.toNanos(deleteWindowMillis);
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMillis, maxWaitMillis));
+        this.coalescer = coalescer;
+        this.handler = handler;
+    }
+
+    /**
+     * Invoked for each event of the webapp, before it is handled
+     * @param delete whether the event is the deletion of a synced file or directory
+     * @param roots the synced directories the event deleted (itself or along with a directory leading to them), if any
+     * @return false if a rebuild is in progress, so the event must not be handled - it is covered by the bulk sync
+     */
+    public boolean eventReceived(WatchableDirectory directory, boolean delete, Collection<Path> roots) {
+        Path projectPath = directory.getProjectPath();
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!rebuilding.isEmpty()) {
+                lastEventNanos = now;
+                if (!rebuilding.containsKey(projectPath)) {
+                    rebuilding.put(projectPath, directory);
+                    coalescer.discard(projectPath);
+                }
+                deletedRoots.addAll(roots);
+                return false;
+            }
+            if (roots.isEmpty() && !(delete && deletesExceedThreshold(now))) {
+                return true;
+            }
+            rebuilding.put(projectPath, directory);
+            deletedRoots.addAll(roots);
+            startNanos = now;
+            lastEventNanos = now;
+            windowDeletes = 0;
+        }
+        rebuilds.incrementAndGet();
+        int discarded = coalescer.discard(projectPath);
+        logger.info("Rebuild of " + projectPath + " detected, pausing sync of " + webappName + " until it is over. Dropped "
+                + discarded + " pending changes");
+        return false;
+    }
+
+    private boolean deletesExceedThreshold(long now) {
+        if (deleteThreshold <= 0) {
+            return false;
+        }
+        if (now - windowStartNanos > deleteWindowNanos) {
+            windowStartNanos = now;
+            windowDeletes = 0;
+        }
+        return ++windowDeletes >= deleteThreshold;
+    }
+
+    /**
+     * Invoked periodically; hands the rebuilt projects over once the build is over
+     */
+    @Override
+    public void run() {
+        List<WatchableDirectory> projects;
+        long rebuildNanos;
+        synchronized (this) {
+            if (rebuilding.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - lastEventNanos < quietNanos) {
+                return;
+            }
+            boolean recreated = rootsRecreated();
+            if (!recreated && now - startNanos < maxWaitNanos) {
+                return;
+            }
+            if (!recreated) {
+                logger.warn("Rebuild of " + webappName + " didn't recreate " + deletedRoots + ", syncing anyway");
+            }
+            rebuildNanos = now - startNanos;
+            projects = new ArrayList<>(rebuilding.values());
+            rebuilding.clear();
+            deletedRoots.clear();
+        }
+        logger.info("Rebuild of " + webappName + " is over, after " + TimeUnit.NANOSECONDS.toMillis(rebuildNanos) + " ms");
+        if (handler != null) {
+            try {
+                handler.rebuildFinished(projects);
+            } catch (RuntimeException ex) {
+                // must not propagate, otherwise the scheduled checks stop
+                logger.error("Failed to sync " + webappName + " after rebuild", ex);
+            }
+        }
+    }
+
+    private boolean rootsRecreated() {
+        for (Path root : deletedRoots) {
+            if (!Files.isDirectory(root)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isRebuilding() {
+        return !rebuilding.isEmpty();
+    }
+
+    public long getRebuildCount() {
+        return rebuilds.get();
+    }
+}
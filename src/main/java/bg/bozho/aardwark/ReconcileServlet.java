@@ -0,0 +1,56 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reconciles the project given with the <code>project</code> parameter (or all projects, if none is given) on a POST,
+ * e.g. after the webapp has been changed by hand. Responds with 202 right away, as reconciliation runs in the
+ * background - its progress can be followed under <code>/status</code>
+ */
+@WebServlet("/reconcile")
+public class ReconcileServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        StartupListener listener = (StartupListener) getServletContext().getAttribute(StartupListener.LISTENER_ATTRIBUTE);
+        @SuppressWarnings("unchecked")
+        Map<String, SyncMetrics> metrics = (Map<String, SyncMetrics>) getServletContext().getAttribute(StartupListener.METRICS_ATTRIBUTE);
+        if (listener == null || metrics == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Not initialized");
+            return;
+        }
+        String project = request.getParameter("project");
+        List<String> projects = new ArrayList<>();
+        if (project != null) {
+            projects.add(project);
+        } else {
+            projects.addAll(metrics.keySet());
+        }
+
+        List<String> scheduled = new ArrayList<>();
+        for (String webappName : projects) {
+            if (listener.reconcile(webappName)) {
+                scheduled.add(webappName);
+            }
+        }
+        if (project != null && scheduled.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such project: " + project);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write("RECONCILING " + scheduled);
+    }
+}
@@ -0,0 +1,118 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Brings parts of the webapp back in sync after events have been lost (the watch service reports an
+ * OVERFLOW when its queue is full, e.g. during a large rebuild), or on demand. The affected subtree is
+ * compared with what has been synced, and only the differences are copied or deleted. Reconciliations run
+ * on their own thread, so that incoming events keep being handled in the meantime, and requests that arrive
+ * while one is running are merged.
+ */
+public class Reconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(Reconciler.class);
+
+    private final DirectorySync directorySync;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("aardwark-reconcile").setDaemon(true).build());
+
+    // by webapp, source and target - several webapps may reconcile the same workspace module. Guarded by this
+    private final Map<List<Object>, Request> pending = new LinkedHashMap<>();
+    private boolean scheduled;
+
+    public Reconciler(DirectorySync directorySync) {
+        this.directorySync = directorySync;
+    }
+
+    /**
+     * Schedules reconciliation of the given source directory with its target
+     * @param manifest what has been synced so far; updated with the changes
+     * @param metrics where the reconciliation is recorded once done
+     */
+    public void schedule(String webappName, Path source, Path target, SyncManifest manifest, SyncTarget syncTarget,
+            SyncMetrics metrics) {
+        synchronized (this) {
+            pending.put(Arrays.<Object>asList(webappName, source, target), new Request(webappName, source, target, manifest, syncTarget, metrics));
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                reconcilePending();
+            }
+        });
+    }
+
+    private void reconcilePending() {
+        List<Request> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(pending.values());
+            pending.clear();
+            scheduled = false;
+        }
+        for (Request request : requests) {
+            if (isCovered(request, requests)) {
+                continue;
+            }
+            try {
+                DirectorySync.Result result = directorySync.sync(request.source, request.target, request.manifest,
+                        request.syncTarget);
+                request.metrics.reconciled(result);
+                logger.info("Reconciled " + request.source + " of " + request.webappName + ": " + result);
+            } catch (RuntimeException ex) {
+                logger.error("Failed to reconcile " + request.source, ex);
+            }
+        }
+    }
+
+    /**
+     * @return true if a parent directory of the request's source is reconciled as well, into the same webapp
+     */
+    private boolean isCovered(Request request, List<Request> requests) {
+        for (Request other : requests) {
+            if (other != request && request.webappName.equals(other.webappName)
+                    && request.source.startsWith(other.source) && request.target.startsWith(other.target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class Request {
+        private final String webappName;
+        private final Path source;
+        private final Path target;
+        private final SyncManifest manifest;
+        private final SyncTarget syncTarget;
+        private final SyncMetrics metrics;
+
+        Request(String webappName, Path source, Path target, SyncManifest manifest, SyncTarget syncTarget, SyncMetrics metrics) {
+            this.webappName = webappName;
+            this.source = source;
+            this.target = target;
+            this.manifest = manifest;
+            this.syncTarget = syncTarget;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package bg.bozho.aardwark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Sends the changes to a {@link SyncAgent} running next to a servlet container that is not on the local file
+ * system (in a container, a VM or on another machine). Requests are pipelined over a single connection - they
+ * are written as they are issued, by any number of threads, and the answers are matched to them in order, so
+ * a round trip is only waited for when a result is needed. Deletes and directory creations are not waited
+ * for at all; their failures are reported by the next {@link #flush()}.
+ * <p>
+ * Files above the delta threshold are sent as a delta against the version the agent already has: the agent
+ * sends the block checksums of its copy, and only the parts of the file that are not found among them are sent.
+ */
+public class RemoteSyncTarget extends SyncTarget {
+
+    private static final Logger logger = LoggerFactory.getLogger(RemoteSyncTarget.class);
+
+    /**
+     * Larger files are streamed rather than read in memory to compute the delta
+     */
+    static final long MAX_DELTA_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_PENDING_REQUESTS = 256;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private final String host;
+    private final int port;
+    private final String token;
+    private final Path localRoot;
+    private final int blockSize;
+    private final long deltaThreshold;
+    private final Throttle throttle;
+
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong matchedBytes = new AtomicLong();
+
+    // guarded by this
+    private Connection connection;
+
+    /**
+     * @param localRoot the webapps directory the targets are given in; mapped to the directory of the agent
+     * @param deltaThreshold the size above which files are sent as a delta
+     * @param throttle limits the rate at which file contents are sent
+     */
+    public RemoteSyncTarget(String host, int port, String token, Path localRoot, int blockSize, long deltaThreshold,
+            Throttle throttle) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.localRoot = localRoot.toAbsolutePath().normalize();
+        this.blockSize = Math.max(1, blockSize);
+        this.deltaThreshold = deltaThreshold;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void transfer(Path source, final Path target) throws IOException {
+        String path = remotePath(target);
+        long size = Files.size(source);
+        long lastModified = Files.getLastModifiedTime(source).toMillis();
+        final int id = uploadIds.incrementAndGet();
+        if (size >= deltaThreshold && size <= MAX_DELTA_SIZE) {
+            SignatureRequest signature = send(new SignatureRequest(path, blockSize));
+            final byte[] contents = Files.readAllBytes(source);
+            signature.await();
+            send(new BeginRequest(id, path, blockSize));
+            long dataLength = signature.signature.delta(contents, SyncProtocol.MAX_DATA_LENGTH, new BlockSignature.DeltaHandler() {
+                @Override
+                public void copy(int firstBlock, int blockCount) throws IOException {
+                    send(new CopyRequest(id, firstBlock, blockCount));
+                }
+
+                @Override
+                public void data(byte[] contents, int offset, int length) throws IOException {
+                    throttle.acquire(length);
+                    send(new DataRequest(id, contents, offset, length));
+                }
+            });
+            sentBytes.addAndGet(dataLength);
+            matchedBytes.addAndGet(contents.length - dataLength);
+        } else {
+            send(new BeginRequest(id, path, blockSize));
+            try (InputStream in = Files.newInputStream(source)) {
+                byte[] buffer = new byte[SyncProtocol.MAX_DATA_LENGTH];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    throttle.acquire(read);
+                    send(new DataRequest(id, buffer.clone(), 0, read));
+                    sentBytes.addAndGet(read);
+                }
+            }
+        }
+        send(new EndRequest(id, lastModified)).await();
+    }
+
+    @Override
+    public void delete(Path target) throws IOException {
+        send(new PathRequest(SyncProtocol.DELETE, remotePath(target)));
+    }
+
+    @Override
+    public void createDirectories(Path directory) throws IOException {
+        send(new PathRequest(SyncProtocol.MKDIRS, remotePath(directory)));
+    }
+
+    @Override
+    public Map<String, FileState> list(Path directory) throws IOException {
+        ListRequest request = send(new ListRequest(remotePath(directory)));
+        request.await();
+        return request.files;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        send(new Request(SyncProtocol.NOOP, true)).await();
+        IOException ex = failure.getAndSet(null);
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close(new IOException("Connection to " + host + ":" + port + " closed"));
+            connection = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return REMOTE + " (" + host + ":" + port + ")";
+    }
+
+    /**
+     * @return the number of bytes of file contents sent
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return the number of bytes of file contents that the agent already had, and were not sent
+     */
+    public long getMatchedBytes() {
+        return matchedBytes.get();
+    }
+
+    private String remotePath(Path target) throws IOException {
+        Path normalized = target.toAbsolutePath().normalize();
+        if (!normalized.startsWith(localRoot)) {
+            throw new IOException(target + " is not within " + localRoot);
+        }
+        return Joiner.on('/').join(localRoot.relativize(normalized));
+    }
+
+    private <T extends Request> T send(T request) throws IOException {
+        Connection current;
+        synchronized (this) {
+            if (connection == null || connection.closed) {
+                connection = new Connection();
+            }
+            current = connection;
+        }
+        current.send(request);
+        return request;
+    }
+
+    /**
+     * A single connection to the agent, with a thread writing the requests in the order they were issued
+     * and one reading the answers. Once anything fails, all pending requests fail and a new connection is
+     * opened for the next ones.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<Request> outgoing = new LinkedBlockingQueue<>(MAX_PENDING_REQUESTS);
+        // written, waiting for an answer
+        private final BlockingQueue<Request> awaiting = new LinkedBlockingQueue<>();
+        private final Thread writer;
+        private final Thread reader;
+        private volatile boolean closed;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                out.writeByte(SyncProtocol.HELLO);
+                out.writeInt(SyncProtocol.VERSION);
+                out.writeUTF(token == null ? "" : token);
+                out.flush();
+                if (in.readByte() != SyncProtocol.OK) {
+                    throw new IOException("Rejected by " + host + ":" + port + ": " + in.readUTF());
+                }
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+            logger.info("Connected to sync agent at " + host + ":" + port);
+
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "aardwark-remote-writer");
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "aardwark-remote-reader");
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        void send(Request request) throws IOException {
+            if (closed) {
+                throw new IOException("Connection to " + host + ":" + port + " closed");
+            }
+            try {
+                outgoing.put(request);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending to " + host + ":" + port);
+            }
+            if (closed) {
+                // failed while it was being queued - make sure nobody waits for it
+                failPending(new IOException("Connection to " + host + ":" + port + " closed"));
+            }
+        }
+
+        private void write() {
+            try {
+                while (!closed) {
+                    Request request = outgoing.take();
+                    awaiting.add(request);
+                    request.write(out);
+                    // requests issued in the meantime go out in the same packets
+                    if (outgoing.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // closed
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        private void read() {
+            try {
+                while (!closed) {
+                    byte status = in.readByte();
+                    Request request = awaiting.poll();
+                    if (request == null) {
+                        throw new IOException("Unexpected answer from " + host + ":" + port);
+                    }
+                    if (status == SyncProtocol.OK) {
+                        request.read(in);
+                        request.complete(null);
+                    } else {
+                        request.complete(new IOException(in.readUTF()));
+                    }
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void fail(IOException cause) {
+            if (!closed) {
+                logger.warn("Connection to sync agent at " + host + ":" + port + " lost: " + cause);
+            }
+            close(cause);
+        }
+
+        void close(IOException cause) {
+            if (!closed) {
+                closed = true;
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    logger.debug("Failed to close socket", ex);
+                }
+                writer.interrupt();
+            }
+            failPending(cause);
+        }
+
+        private void failPending(IOException cause) {
+            Request request;
+            while ((request = awaiting.poll()) != null) {
+                request.complete(cause);
+            }
+            while ((request = outgoing.poll()) != null) {
+                request.complete(cause);
+            }
+        }
+    }
+
+    /**
+     * A request and, once answered, its outcome. Failures of requests that nobody waits for are kept for the next flush
+     */
+    private class Request {
+        private final byte operation;
+        private final boolean awaited;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException error;
+
+        Request(byte operation, boolean awaited) {
+            this.operation = operation;
+            this.awaited = awaited;
+        }
+
+        final void write(DataOutputStream out) throws IOException {
+            out.writeByte(operation);
+            writeArguments(out);
+        }
+
+        void writeArguments(DataOutputStream out) throws IOException {
+            // no arguments
+        }
+
+        /**
+         * Reads the result that follows a successful status
+         */
+        void read(DataInputStream in) throws IOException {
+            // no result
+        }
+
+        synchronized void complete(IOException error) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            this.error = error;
+            done.countDown();
+            if (error != null && !awaited) {
+                logger.warn("Request to " + host + ":" + port + " failed: " + error.getMessage());
+                failure.compareAndSet(null, error);
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + host + ":" + port);
+            }
+            synchronized (this) {
+                if (error != null) {
+                    throw new IOException(error.getMessage(), error);
+                }
+            }
+        }
+    }
+
+    private class PathRequest extends Request {
+        private final String path;
+
+        PathRequest(byte operation, String path) {
+            this(operation, path, false);
+        }
+
+        PathRequest(byte operation, String path, boolean awaited) {
+            super(operation, awaited);
+            this.path = path;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+        }
+    }
+
+    private class ListRequest extends PathRequest {
+        private Map<String, FileState> files;
+
+        ListRequest(String path) {
+            super(SyncProtocol.LIST, path, true);
+        }
+
+        @Override
+        void read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            files = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                files.put(name, new FileState(in.readBoolean(), in.readLong(), in.readLong()));
+            }
+        }
+    }
+
+    private class SignatureRequest extends PathRequest {
+        private final int blockSize;
+        private BlockSignature signature;
+
+        SignatureRequest(String path, int blockSize) {
+            super(SyncProtocol.SIGNATURE, path, true);
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            super.writeArguments(out);
+            out.writeInt(blockSize);
+        }
+
+        @Override
+        void read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][SyncProtocol.STRONG_CHECKSUM_LENGTH];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong[i]);
+            }
+            signature = new BlockSignature(blockSize, weak, strong);
+        }
+    }
+
+    private class BeginRequest extends Request {
+        private final int id;
+        private final String path;
+        private final int blockSize;
+
+        BeginRequest(int id, String path, int blockSize) {
+            super(SyncProtocol.BEGIN, false);
+            this.id = id;
+            this.path = path;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            out.writeInt(id);
+            out.writeUTF(path);
+            out.writeInt(blockSize);
+        }
+    }
+
+    private class DataRequest extends Request {
+        private final int id;
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        DataRequest(int id, byte[] data, int offset, int length) {
+            super(SyncProtocol.DATA, false);
+            this.id = id;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            out.writeInt(id);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+    }
+
+    private class CopyRequest extends Request {
+        private final int id;
+        private final int firstBlock;
+        private final int blockCount;
+
+        CopyRequest(int id, int firstBlock, int blockCount) {
+            super(SyncProtocol.COPY, false);
+            this.id = id;
+            this.firstBlock = firstBlock;
+            this.blockCount = blockCount;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            out.writeInt(id);
+            out.writeInt(firstBlock);
+            out.writeInt(blockCount);
+        }
+    }
+
+    /**
+     * Waited for by the sender; any failure of the upload is reported here
+     */
+    private class EndRequest extends Request {
+        private final int id;
+        private final long lastModified;
+
+        EndRequest(int id, long lastModified) {
+            super(SyncProtocol.END, true);
+            this.id = id;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        void writeArguments(DataOutputStream out) throws IOException {
+            out.writeInt(id);
+            out.writeLong(lastModified);
+        }
+    }
+}
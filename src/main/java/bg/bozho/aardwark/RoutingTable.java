@@ -0,0 +1,203 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.Resource;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+
+/**
+ * Maps files of a project to their location in the webapp. Built once per project from the maven model:
+ * the output directory and the (unfiltered) resource directories go to WEB-INF/classes, the war source
+ * directory and the (unfiltered) web resources of the maven-war-plugin go to the root of the webapp.
+ * Lookups only compare path prefixes, most specific source directory first.
+ */
+public class RoutingTable {
+
+    public static final String CLASSES_TARGET = "WEB-INF/classes";
+
+    private static final Set<String> TEMPLATE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jsp", "jspf", "jspx", "tag", "tagx", "tld", "xhtml", "html", "htm", "ftl", "ftlh", "vm", "mustache", "hbs", "xml"));
+
+    private final List<Route> routes;
+
+    private RoutingTable(List<Route> routes) {
+        Collections.sort(routes, new Comparator<Route>() {
+            @Override
+            public int compare(Route first, Route second) {
+                return second.source.getNameCount() - first.source.getNameCount();
+            }
+        });
+        this.routes = routes;
+    }
+
+    /**
+     * @param model the effective model of the project, or null to use the default maven layout
+     */
+    public static RoutingTable create(Path projectPath, Model model) {
+        return create(projectPath, model, true);
+    }
+
+    /**
+     * @param webResources whether the war source directory and web resources are routed - not the case
+     * for modules whose classes are synced as a dependency
+     */
+    public static RoutingTable create(Path projectPath, Model model, boolean webResources) {
+        List<Route> routes = new ArrayList<>();
+        Build build = model != null ? model.getBuild() : null;
+
+        String outputDirectory = build != null && build.getOutputDirectory() != null ? build.getOutputDirectory() : "target/classes";
+        routes.add(new Route(projectPath.resolve(outputDirectory).normalize(), CLASSES_TARGET, true));
+        if (build != null) {
+            for (Resource resource : build.getResources()) {
+                addResourceRoute(routes, projectPath, resource.getDirectory(), resource.getTargetPath(),
+                        resource.isFiltering() || !resource.getIncludes().isEmpty() || !resource.getExcludes().isEmpty(),
+                        CLASSES_TARGET, true);
+            }
+        }
+
+        if (!webResources) {
+            return new RoutingTable(routes);
+        }
+        String warSourceDirectory = "src/main/webapp";
+        Xpp3Dom configuration = getWarPluginConfiguration(build);
+        if (configuration != null) {
+            if (configuration.getChild("warSourceDirectory") != null) {
+                warSourceDirectory = configuration.getChild("warSourceDirectory").getValue();
+            }
+            Xpp3Dom webResourcesConfiguration = configuration.getChild("webResources");
+            if (webResourcesConfiguration != null) {
+                for (Xpp3Dom resource : webResourcesConfiguration.getChildren("resource")) {
+                    addResourceRoute(routes, projectPath, getValue(resource, "directory"), getValue(resource, "targetPath"),
+                            "true".equals(getValue(resource, "filtering")) || resource.getChild("includes") != null
+                                    || resource.getChild("excludes") != null, "", false);
+                }
+            }
+        }
+        routes.add(new Route(projectPath.resolve(warSourceDirectory).normalize(), "", false));
+        return new RoutingTable(routes);
+    }
+
+    private static void addResourceRoute(List<Route> routes, Path projectPath, String directory, String targetPath,
+            boolean processed, String base, boolean classes) {
+        // filtered or partially included resources have to go through the build
+        if (directory == null || processed) {
+            return;
+        }
+        String target = base;
+        if (targetPath != null && !targetPath.trim().isEmpty()) {
+            target = base.isEmpty() ? targetPath.trim() : base + "/" + targetPath.trim();
+        }
+        routes.add(new Route(projectPath.resolve(directory).normalize(), target, classes));
+    }
+
+    private static Xpp3Dom getWarPluginConfiguration(Build build) {
+        if (build == null) {
+            return null;
+        }
+        for (Plugin plugin : build.getPlugins()) {
+            if ("maven-war-plugin".equals(plugin.getArtifactId()) && plugin.getConfiguration() instanceof Xpp3Dom) {
+                return (Xpp3Dom) plugin.getConfiguration();
+            }
+        }
+        return null;
+    }
+
+    private static String getValue(Xpp3Dom dom, String child) {
+        Xpp3Dom element = dom.getChild(child);
+        return element != null && element.getValue() != null ? element.getValue().trim() : null;
+    }
+
+    /**
+     * @return the route of the given file or directory, or null if it is not synced
+     */
+    public Route getRoute(Path filePath) {
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            if (filePath.startsWith(route.source)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the location of the file in the webapp, or null if it is not synced
+     */
+    public Path resolve(Path filePath, Path webappPath) {
+        Route route = getRoute(filePath);
+        return route != null ? route.resolve(filePath, webappPath) : null;
+    }
+
+    /**
+     * @return the lane in which changes of the file are synced - classes for anything going to WEB-INF/classes,
+     * templates for views and web descriptors elsewhere in the webapp, static for the rest
+     */
+    public FileChange.Lane getLane(Path filePath) {
+        Route route = getRoute(filePath);
+        if (route != null && route.isClasses()) {
+            return FileChange.Lane.CLASSES;
+        }
+        String fileName = filePath.getFileName() != null ? filePath.getFileName().toString() : "";
+        int dot = fileName.lastIndexOf('.');
+        return dot != -1 && TEMPLATE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH))
+                ? FileChange.Lane.TEMPLATES : FileChange.Lane.STATIC;
+    }
+
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    public static class Route {
+        private final Path source;
+        private final String target;
+        private final boolean classes;
+
+        Route(Path source, String target, boolean classes) {
+            this.source = source;
+            this.target = target;
+            this.classes = classes;
+        }
+
+        public Path resolve(Path filePath, Path webappPath) {
+            Path targetRoot = target.isEmpty() ? webappPath : webappPath.resolve(target);
+            return filePath.equals(source) ? targetRoot : targetRoot.resolve(source.relativize(filePath));
+        }
+
+        /**
+         * @return the source directory
+         */
+        public Path getSource() {
+            return source;
+        }
+
+        /**
+         * @return the target directory, relative to the root of the webapp
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return true if the files of the route end up on the classpath (WEB-INF/classes)
+         */
+        public boolean isClasses() {
+            return classes;
+        }
+
+        @Override
+        public String toString() {
+            return source + " -> /" + target;
+        }
+    }
+}
@@ -1,65 +1,115 @@
 package bg.bozho.aardwark;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.maven.cli.MavenCli;
 import org.apache.maven.model.Dependency;
 import org.apache.maven.model.Model;
 import org.apache.maven.model.Plugin;
-import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.apache.maven.model.building.ModelBuildingException;
 import org.codehaus.plexus.util.xml.Xpp3Dom;
-import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.resolution.DependencyResolutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Lists;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @WebListener
 public class StartupListener implements ServletContextListener {
 
     private static final Logger logger = LoggerFactory.getLogger(StartupListener.class);
-    private static final DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("HH:mm:ss dd.MM.yyyy");
 
+    /**
+     * The servlet context attribute holding the {@link SyncMetrics} of each project, by webapp name
+     */
+    public static final String METRICS_ATTRIBUTE = "aardwark.metrics";
+
+    /**
+     * The servlet context attribute holding a {@link CountDownLatch} that is released once all projects are set up (or have failed to)
+     */
+    public static final String INITIALIZATION_ATTRIBUTE = "aardwark.initialization";
+
+    /**
+     * The servlet context attribute holding the listener itself, for triggering its operations (see {@link #reconcile(String)})
+     */
+    public static final String LISTENER_ATTRIBUTE = "aardwark.listener";
+
+    // a single change detector per backend (the watch service, or polling), shared by all projects using it,
+    // and a single thread taking the events from each
     private ExecutorService executor;
-    private WatchService watcher;
+    private ExecutorService initExecutor;
+    private CountDownLatch initialization = new CountDownLatch(0);
+    private ScheduledExecutorService flushExecutor;
+    private Map<String, ChangeDetector> changeDetectors = new HashMap<>();
+    private SyncSettings settings = new SyncSettings();
+    private Map<String, ProjectDispatcher> dispatchers = new ConcurrentHashMap<>();
+    private DirectorySync directorySync;
+    private Reconciler reconciler;
+    private DependencyResolver dependencyResolver;
+    private MavenModelCache modelCache = new MavenModelCache();
+    private Throttle throttle = Throttle.unlimited();
     private FileSystem fs = FileSystems.getDefault();
-    private Map<String, Path> webappPaths = new HashMap<>();
-    private Map<String, Path> projectPaths = new HashMap<>();
+    private WatchFilter watchFilter = new WatchFilter(fs, null, WatchFilter.DEFAULT_EXCLUDES);
+    private Map<String, Path> webappPaths = new ConcurrentHashMap<>();
+    private Map<String, Path> projectPaths = new ConcurrentHashMap<>();
+    private Map<String, TransferStrategy> transferStrategies = new ConcurrentHashMap<>();
+    private Map<String, SyncTarget> syncTargets = new ConcurrentHashMap<>();
+    // set if the webapps are synced to a sync agent rather than to the local file system
+    private RemoteSyncTarget remoteTarget;
+    private Map<String, SyncManifest> manifests = new ConcurrentHashMap<>();
+    private Map<Path, RoutingTable> routingTables = new ConcurrentHashMap<>();
+    private Map<String, List<Path>> workspaceProjects = new ConcurrentHashMap<>();
+    private Map<String, Set<String>> workspaceArtifacts = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, SyncMetrics> metrics = new ConcurrentHashMap<>();
+    private Set<String> invalidatedDependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     // a map holding mapping from watch keys to paths and related metadata,
     // because each WatchEvent contains only the file name, and not the path to
     // the file
@@ -68,133 +118,585 @@ public class StartupListener implements ServletContextListener {
     // thread should
     // handle WatchEvents, and we should be able to differentiate projects based
     // on the event.
-    private Map<WatchKey, WatchableDirectory> watched = new HashMap<>();
+    // A directory may be watched for several webapps (a workspace module they all
+    // depend on), in which case the events of its key go to each of them.
+    // Modified while holding the map itself.
+    private Map<WatchKey, List<WatchableDirectory>> watched = new ConcurrentHashMap<>();
+    // events of projects that are being set up, by webapp name
+    private final Object readinessLock = new Object();
+    private Map<String, List<DeferredEvents>> deferredEvents = new HashMap<>();
 
     public void contextInitialized(ServletContextEvent sce) {
 
+        List<String> propertiesLines = readPropertiesFile(sce);
+
         // supporting multiple projects
-        List<String> projectDirs = getProjectDirectories(sce);
+        List<String> projectDirs = getProjectDirectories(sce, propertiesLines);
 
-        for (String projectDir : projectDirs) {
-            try {
-                Model model = readMavenModel(projectDir);
+        initialize(new SyncSettings(propertiesLines));
+        sce.getServletContext().setAttribute(METRICS_ATTRIBUTE, Collections.unmodifiableMap(metrics));
+        sce.getServletContext().setAttribute(INITIALIZATION_ATTRIBUTE, initialization = new CountDownLatch(projectDirs.size()));
+        sce.getServletContext().setAttribute(LISTENER_ATTRIBUTE, this);
 
-                if (model == null) {
-                    logger.error("No maven project found under path " + projectDir +
-                            ". Make sure you have configured aardWARk properly " +
-                            "(by setting the path in the war name, after aardwark-, " +
-                            "or via a propertie sfile) and also that the target directory exists");
-                    continue;
+        // the projects are set up in the background, waited for only up to init.awaitMillis, so that a slow project
+        // doesn't hold the container from deploying the webapps for too long
+        final Path webappsDirectory = fs.getPath(sce.getServletContext().getRealPath("/")).getParent();
+        remoteTarget = createRemoteTarget(webappsDirectory);
+        initExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(projectDirs.size(), settings.getInt(SyncSettings.INIT_PARALLELISM, Runtime.getRuntime().availableProcessors()))),
+                new ThreadFactoryBuilder().setNameFormat("aardwark-init-%d").setDaemon(true).build());
+        for (final String projectDir : projectDirs) {
+            initExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        initProject(projectDir, webappsDirectory);
+                    } finally {
+                        initialization.countDown();
+                    }
                 }
-                watcher = fs.newWatchService();
-                String webappName = getTargetWebapp(model);
-                Path projectPath = fs.getPath(projectDir);
-                projectPaths.put(webappName, projectPath);
-                Path webappPath = fs.getPath(sce.getServletContext().getRealPath("/")).getParent().resolve(webappName);
-                webappPaths.put(webappName, webappPath);
-
-                // if the webapp does not exist, assume ROOT is used
-                if (Files.notExists(webappPath)) {
-                    logger.warn("No webapp found under " + webappPath.toString() + ". Using ROOT instead.");
-                    webappPath = webappPath.getParent().resolve("ROOT");
+            });
+        }
+        initExecutor.shutdown();
+
+        long awaitMillis = settings.getLong(SyncSettings.INIT_AWAIT_MILLIS, 30000);
+        if (awaitMillis > 0) {
+            try {
+                if (!initialization.await(awaitMillis, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Projects not ready after " + awaitMillis + " ms, continuing in the background");
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                executor = Executors.newSingleThreadExecutor();
+    /**
+     * Syncs the project and starts watching it. Failures are confined to the project.
+     */
+    private void initProject(String projectDir, Path webappsDirectory) {
+        String webappName = null;
+        try {
+            long projectStart = System.currentTimeMillis();
+            Model model = readMavenModel(projectDir);
 
-                // copy once on startup
-                // TODO pass model and check parent and dependent projects' poms for changes, in addition to the current project pom
-                if (dependencyCopyingNeeded(webappName, projectPath)) {
-                    copyDependencies(webappName, model);
-                } else {
-                    logger.info("No need to copy project dependencies, as the pom file hasn't been modified since the last copy");
+            if (model == null) {
+                logger.error("No maven project found under path " + projectDir +
+                        ". Make sure you have configured aardWARk properly " +
+                        "(by setting the path in the war name, after aardwark-, " +
+                        "or via a propertie sfile) and also that the target directory exists");
+                return;
+            }
+            webappName = getTargetWebapp(model);
+            SyncMetrics projectMetrics = getMetrics(webappName);
+            projectMetrics.setState(SyncMetrics.State.INITIALIZING, null);
+            registerMetrics(projectMetrics);
+            synchronized (readinessLock) {
+                deferredEvents.put(webappName, new ArrayList<DeferredEvents>());
+            }
+            Path projectPath = fs.getPath(projectDir);
+            projectPaths.put(webappName, projectPath);
+            logger.info("Watching " + webappName + " using " + getChangeDetector(webappName).getName() + " change detection");
+            Path webappPath = webappsDirectory.resolve(webappName);
+
+            // if the webapp does not exist, assume ROOT is used
+            if (!webappExists(webappsDirectory, webappName)) {
+                logger.warn("No webapp found under " + webappPath.toString() + ". Using ROOT instead.");
+                webappPath = webappPath.getParent().resolve("ROOT");
+            }
+            webappPaths.put(webappName, webappPath);
+
+            if (remoteTarget == null) {
+                TransferStrategy transferStrategy = detectTransferStrategy(projectPath, webappPath);
+                if (isBatchPublishing() && transferStrategy != transferStrategy.toCopying()) {
+                    // the webapp must not change before a batch is published, which it would through links to the sources
+                    logger.info("Copying rather than linking the files of " + webappName + ", as they are published in batches");
+                    transferStrategy = transferStrategy.toCopying();
                 }
+                transferStrategies.put(webappName, transferStrategy);
+                syncTargets.put(webappName, SyncTarget.local(transferStrategy));
+            }
+            logger.info("Syncing " + webappName + " to " + getSyncTarget(webappName).getName());
 
-                copyClassesAndResources(webappName, model);
+            long phaseStart = System.currentTimeMillis();
+            Model effectiveModel = buildEffectiveModel(webappName, projectPath);
+            buildRoutingTable(projectPath, effectiveModel, true);
+            projectMetrics.phaseCompleted("effectiveModel", System.currentTimeMillis() - phaseStart);
 
-                watchProject(webappName, projectPath, model, false);
+            // also watch dependent projects that are within the same workspace,
+            // so that their classes are synced live into WEB-INF/classes
+            // (rather than their jars being copied to WEB-INF/lib).
+            // Adding only the artifactId (rather than groupId+artifactId) as
+            // groupIds tend to be variables, and we can't resolve variables
+            // here. Might lead to inappropriate copies, but they can't do any
+            // harm
+            phaseStart = System.currentTimeMillis();
+            Set<String> dependencies = new HashSet<>();
+            for (Dependency dependency : model.getDependencies()) {
+                dependencies.add(dependency.getArtifactId());
+            }
+            // the reactors up to the workspace root mostly contain each other, so each module is watched only once
+            Set<Path> modulePaths = new LinkedHashSet<>();
+            Path currentPath = projectPath;
+            Model currentModel = model;
+            while (currentModel != null && currentPath.getParent() != null) {
+                currentPath = currentPath.getParent();
+                currentModel = readMavenModel(currentPath.toString());
+                if (currentModel != null) {
+                    findDependentModules(currentPath, dependencies, modulePaths);
+                }
+            }
+            for (Path modulePath : modulePaths) {
+                watchDependentProjects(webappName, readMavenModel(modulePath.toString()), dependencies, modulePath);
+            }
+            projectMetrics.phaseCompleted("workspaceProjects", System.currentTimeMillis() - phaseStart);
 
-                // also watch dependent projects that are within the same workspace,
-                // so that their classes are copied as well (rather than their
-                // jars). TODO remove these jars from the copied dependencies?
-                // Adding only the artifactId (rather than groupId+artifactId) as
-                // groupIds tend to be variables, and we can't resolve variables
-                // here. Might lead to inappropriate copies, but they can't do any
-                // harm
-                Set<String> dependencies = new HashSet<>();
-                for (Dependency dependency : model.getDependencies()) {
-                    dependencies.add(dependency.getArtifactId());
+            // copy once on startup, if the dependencies (including those inherited from parents) have changed
+            phaseStart = System.currentTimeMillis();
+            String dependencyFingerprint = effectiveModel != null
+                    ? dependencyResolver.fingerprint(effectiveModel, getWorkspaceArtifacts(webappName)) : null;
+            if (dependencyCopyingNeeded(webappName, dependencyFingerprint)) {
+                copyDependencies(webappName, effectiveModel);
+                writeDependencyFingerprint(webappName, dependencyFingerprint);
+            } else {
+                logger.info("No need to copy project dependencies, as they haven't changed since the last copy");
+            }
+            projectMetrics.phaseCompleted("dependencies", System.currentTimeMillis() - phaseStart);
+
+            phaseStart = System.currentTimeMillis();
+            copyClassesAndResources(webappName, model);
+            projectMetrics.phaseCompleted("classesAndResources", System.currentTimeMillis() - phaseStart);
+
+            phaseStart = System.currentTimeMillis();
+            watchProject(webappName, projectPath, model, false);
+            projectMetrics.phaseCompleted("watches", System.currentTimeMillis() - phaseStart);
+
+            startDispatching(webappName);
+            projectMetrics.phaseCompleted("total", System.currentTimeMillis() - projectStart);
+            projectMetrics.setState(SyncMetrics.State.READY, null);
+            logger.info("Project " + webappName + " is ready, in " + (System.currentTimeMillis() - projectStart) + " ms");
+        } catch (IOException | RuntimeException e) {
+            // other projects can still be synced
+            logger.error("Failed to watch project " + projectDir, e);
+            if (webappName != null) {
+                synchronized (readinessLock) {
+                    deferredEvents.remove(webappName);
                 }
-                Path currentPath = projectPath;
-                Model currentModel = model;
-                while (currentModel != null) {
-                    currentPath = currentPath.getParent();
-                    Model currentProjectModel = readMavenModel(currentPath.toString());
-                    watchDependentProjects(webappName, currentProjectModel, dependencies, currentPath);
-                    currentModel = currentProjectModel;
+                unwatch(webappName);
+                getMetrics(webappName).setState(SyncMetrics.State.FAILED, String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Sets up the components shared by all projects
+     */
+    void initialize(SyncSettings settings) {
+        this.settings = settings;
+        watchFilter = new WatchFilter(fs, settings.getString(SyncSettings.WATCH_INCLUDES, null),
+                settings.getString(SyncSettings.WATCH_EXCLUDES, WatchFilter.DEFAULT_EXCLUDES));
+        directorySync = new DirectorySync(settings.getInt(SyncSettings.SYNC_PARALLELISM, Runtime.getRuntime().availableProcessors()),
+                settings.getBoolean(SyncSettings.SYNC_HASH_CONTENTS, false));
+        reconciler = new Reconciler(directorySync);
+        // shared by all projects, as they share the disk
+        throttle = new Throttle(settings.getLong(SyncSettings.TRANSFER_BANDWIDTH_LIMIT, 0));
+        String localRepository = settings.getString(SyncSettings.DEPENDENCIES_LOCAL_REPOSITORY, null);
+        dependencyResolver = new DependencyResolver(localRepository != null ? fs.getPath(localRepository) : DependencyResolver.getDefaultLocalRepository());
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("aardwark-dispatch").setDaemon(true).build());
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("aardwark-watch-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return the backend configured with watch.backend - either for the particular webapp (as watch.backend.&lt;webapp name&gt;),
+     * or for all of them
+     */
+    private String getChangeDetectorName(String webappName) {
+        return settings.getString(SyncSettings.WATCH_BACKEND + "." + webappName,
+                settings.getString(SyncSettings.WATCH_BACKEND, ChangeDetector.NATIVE));
+    }
+
+    /**
+     * @return the change detector of the webapp's backend, created (and taken events from) when first needed
+     */
+    private ChangeDetector getChangeDetector(String webappName) throws IOException {
+        String name = getChangeDetectorName(webappName);
+        synchronized (changeDetectors) {
+            ChangeDetector changeDetector = changeDetectors.get(name);
+            if (changeDetector == null) {
+                if (ChangeDetector.POLLING.equals(name)) {
+                    PollingChangeDetector poller = new PollingChangeDetector(settings.getLong(SyncSettings.POLL_INTERVAL_MILLIS, 500),
+                            settings.getLong(SyncSettings.POLL_MAX_INTERVAL_MILLIS, 2000),
+                            settings.getInt(SyncSettings.POLL_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+                    poller.start();
+                    changeDetector = poller;
+                } else if (ChangeDetector.NATIVE.equals(name)) {
+                    changeDetector = ChangeDetector.watching(fs.newWatchService());
+                } else {
+                    throw new IllegalStateException("Unknown watch backend " + name + ", expected "
+                            + ChangeDetector.NATIVE + " or " + ChangeDetector.POLLING);
                 }
+                changeDetectors.put(name, changeDetector);
+                startWatching(changeDetector);
+            }
+            return changeDetector;
+        }
+    }
 
-                startWatching();
-            } catch (IOException e) {
-                throw new IllegalStateException("Failed to watch file system", e);
+    /**
+     * Each project gets its own dispatch queue and copy workers, so that a busy project cannot starve the others
+     */
+    private void startDispatching(final String webappName) {
+        final SyncMetrics projectMetrics = getMetrics(webappName);
+        BatchPublisher publisher = null;
+        if (isBatchPublishing() && remoteTarget != null) {
+            // batches are staged within the webapp, which only works on the local file system
+            logger.warn("Batch publishing is not supported with a remote target, publishing changes of " + webappName + " directly");
+        } else if (isBatchPublishing()) {
+            publisher = new BatchPublisher(webappName, webappPaths.get(webappName), getTransferStrategy(webappName), getManifest(webappName),
+                    projectMetrics, settings.getString(SyncSettings.PUBLISH_TOUCH, null), settings.getString(SyncSettings.PUBLISH_HOOK, null));
+        }
+        ProjectDispatcher dispatcher = new ProjectDispatcher(webappName, settings, new CopyWorkerPool.ChangeWorker() {
+            @Override
+            public void apply(FileChange change) {
+                try {
+                    applyChange(change);
+                } catch (IOException ex) {
+                    projectMetrics.changeFailed();
+                    logger.warn("Failed to sync " + change, ex);
+                }
+            }
+        }, publisher, new RebuildDetector.RebuildHandler() {
+            @Override
+            public void rebuildFinished(Collection<WatchableDirectory> projects) {
+                resyncAfterRebuild(webappName, projects);
+            }
+        });
+        projectMetrics.setDispatcher(dispatcher);
+        synchronized (readinessLock) {
+            dispatchers.put(webappName, dispatcher);
+            // the events that arrived while the project was being set up, before any that arrive later
+            List<DeferredEvents> deferred = deferredEvents.remove(webappName);
+            if (deferred != null) {
+                for (DeferredEvents events : deferred) {
+                    handleEvents(events.watchableDirectory, events.events, dispatcher);
+                }
             }
         }
+        long flushPeriod = Math.max(10, ProjectDispatcher.getQuietMillis(settings) / 4);
+        flushExecutor.scheduleWithFixedDelay(dispatcher, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Determine if dependency copying is needed, by comparing the last modified date of the pom to the last dependency copy (stored in the tomcat temp dir)
+     * Determine if dependency copying is needed, by comparing the fingerprint of the project's dependencies to
+     * the one of the last dependency copy (stored in the tomcat temp dir)
      * @param webappName
+     * @param dependencyFingerprint the current fingerprint, or null if it couldn't be computed
      * @return true if dependencies should be copied.
      */
-    private boolean dependencyCopyingNeeded(String webappName, Path projectPath) {
+    private boolean dependencyCopyingNeeded(String webappName, String dependencyFingerprint) {
+        if (dependencyFingerprint == null) {
+            return true;
+        }
         try {
             Path metaFile = getDependencyCopyMetaFile(webappName);
-            List<String> lines = Files.readAllLines(metaFile, Charset.forName("UTF-8"));
-            if (!lines.isEmpty() && !lines.get(0).isEmpty()) {
-                DateTime lastCopy = dateTimeFormatter.parseDateTime(lines.get(0));
-                DateTime lastModified = new DateTime(Files.getLastModifiedTime(projectPath.resolve("pom.xml")).toMillis());
-                if (lastCopy.isBefore(lastModified)) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else {
+            if (Files.notExists(metaFile)) {
                 return true;
             }
+            List<String> lines = Files.readAllLines(metaFile, Charset.forName("UTF-8"));
+            return lines.isEmpty() || !lines.get(0).equals(dependencyFingerprint);
         } catch (IOException e) {
-            logger.warn("Cannot create temp file for tracking dependency copying. This may result in slower startup times", e);
+            logger.warn("Cannot read the temp file for tracking dependency copying. This may result in slower startup times", e);
             return true;
         }
     }
 
-    private Path getDependencyCopyMetaFile(String webappName) throws IOException {
-        Path metaFile = fs.getPath(System.getProperty("java.io.tmpdir"), webappName + ".tmp");
-        if (Files.notExists(metaFile)) {
-            metaFile = Files.createTempFile(webappName, "tmp");
+    private Path getDependencyCopyMetaFile(String webappName) {
+        return fs.getPath(System.getProperty("java.io.tmpdir"), webappName + ".tmp");
+    }
+
+    private void writeDependencyFingerprint(String webappName, String dependencyFingerprint) {
+        if (dependencyFingerprint == null) {
+            return;
+        }
+        try {
+            Files.write(getDependencyCopyMetaFile(webappName), Arrays.asList(dependencyFingerprint), Charset.forName("UTF-8"));
+            invalidatedDependencies.remove(webappName);
+        } catch (IOException e) {
+            logger.warn("Cannot create temp file for tracking dependency copying. This may result in slower startup times", e);
         }
-        return metaFile;
     }
 
-    private void copyClassesAndResources(String webappName, Model model) throws IOException {
+    /**
+     * Makes sure dependencies are copied on next startup, regardless of the fingerprint
+     */
+    private void invalidateDependencyFingerprint(String webappName) throws IOException {
+        // only once - there are usually many changes in a row
+        if (invalidatedDependencies.add(webappName)) {
+            Files.deleteIfExists(getDependencyCopyMetaFile(webappName));
+        }
+    }
+
+    private Model buildEffectiveModel(String webappName, Path projectPath) {
+        try {
+            return modelCache.getEffectiveModel(projectPath, dependencyResolver);
+        } catch (ModelBuildingException ex) {
+            logger.info("Cannot build the effective model of " + webappName + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isBatchPublishing() {
+        return BatchPublisher.MODE_BATCH.equals(settings.getString(SyncSettings.PUBLISH_MODE, BatchPublisher.MODE_DIRECT));
+    }
+
+    private TransferStrategy detectTransferStrategy(Path projectPath, Path webappPath) {
+        String mode = settings.getString(SyncSettings.TRANSFER_MODE, TransferStrategy.AUTO);
+        long largeFileThreshold = settings.getLong(SyncSettings.TRANSFER_LARGE_FILE_THRESHOLD, 1024 * 1024);
+        // probe in the build output directory rather than among the sources, if possible
+        Path sourceDir = Files.isDirectory(projectPath.resolve("target")) ? projectPath.resolve("target") : projectPath;
+        Path targetDir = Files.isDirectory(webappPath) ? webappPath : webappPath.getParent();
+        return TransferStrategy.detect(sourceDir, targetDir, mode, largeFileThreshold, throttle,
+                settings.getLong(SyncSettings.TRANSFER_CHUNK_SIZE, TransferStrategy.DEFAULT_CHUNK_SIZE));
+    }
+
+    private TransferStrategy getTransferStrategy(String webappName) {
+        TransferStrategy strategy = transferStrategies.get(webappName);
+        if (strategy == null) {
+            strategy = TransferStrategy.copying(Long.MAX_VALUE);
+        }
+        return strategy;
+    }
+
+    /**
+     * @return where the files of the webapp are synced to - the remote target if there is one, otherwise the local
+     * file system, using the transfer strategy of the webapp
+     */
+    SyncTarget getSyncTarget(String webappName) {
+        if (remoteTarget != null) {
+            return remoteTarget;
+        }
+        SyncTarget syncTarget = syncTargets.get(webappName);
+        if (syncTarget == null) {
+            syncTarget = SyncTarget.local(getTransferStrategy(webappName));
+        }
+        return syncTarget;
+    }
+
+    /**
+     * @return the remote target configured with target.remote (host:port), or null if the webapps are local
+     */
+    private RemoteSyncTarget createRemoteTarget(Path webappsDirectory) {
+        String address = settings.getString(SyncSettings.TARGET_REMOTE, null);
+        if (address == null || address.trim().isEmpty()) {
+            return null;
+        }
+        int separator = address.lastIndexOf(':');
+        String host = separator == -1 ? address.trim() : address.substring(0, separator).trim();
+        int port = separator == -1 ? SyncProtocol.DEFAULT_PORT : Integer.parseInt(address.substring(separator + 1).trim());
+        RemoteSyncTarget target = new RemoteSyncTarget(host, port, settings.getString(SyncSettings.TARGET_TOKEN, null),
+                webappsDirectory, settings.getInt(SyncSettings.TARGET_BLOCK_SIZE, 8192),
+                settings.getLong(SyncSettings.TARGET_DELTA_THRESHOLD, 64 * 1024), throttle);
+        logger.info("Syncing webapps to " + target.getName());
+        return target;
+    }
+
+    private boolean webappExists(Path webappsDirectory, String webappName) throws IOException {
+        if (remoteTarget != null) {
+            SyncTarget.FileState webapp = remoteTarget.list(webappsDirectory).get(webappName);
+            return webapp != null && webapp.isDirectory();
+        }
+        return Files.exists(webappsDirectory.resolve(webappName));
+    }
+
+    private Path getSyncManifestFile(String webappName) {
+        return fs.getPath(System.getProperty("java.io.tmpdir"), webappName + ".manifest");
+    }
+
+    /**
+     * Copies the files that have changed since the last sync (as recorded in the sync manifest)
+     */
+    void copyClassesAndResources(String webappName, Model model) throws IOException {
         Path projectPath = projectPaths.get(webappName);
-        Path webappPath = webappPaths.get(webappName);
-        FileUtils.copyDirectory(projectPath.resolve("target/classes").toFile(), webappPath.resolve("WEB-INF/classes").toFile());
-        FileUtils.copyDirectory(projectPath.resolve("src/main/webapp").toFile(), webappPath.toFile());
+        Path manifestFile = getSyncManifestFile(webappName);
+        // kept up-to-date while watching, and saved again on shutdown
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        manifests.put(webappName, manifest);
+        SyncTarget syncTarget = getSyncTarget(webappName);
+        // the classes of the workspace modules first, so that those of the project itself win in case of conflicts
+        List<Path> projects = new ArrayList<>(getWorkspaceProjects(webappName));
+        projects.add(projectPath);
+        for (Path project : projects) {
+            for (Path root : getWatchRoots(project)) {
+                DirectorySync.Result result = directorySync.sync(root, determineTarget(webappName, root, project), manifest, syncTarget);
+                getMetrics(webappName).synced(result);
+                logger.info("Synced " + root + " to " + webappName + ": " + result);
+            }
+        }
+        manifest.save(manifestFile);
+    }
+
+    SyncMetrics getMetrics(String webappName) {
+        SyncMetrics projectMetrics = metrics.get(webappName);
+        if (projectMetrics == null) {
+            metrics.putIfAbsent(webappName, new SyncMetrics(webappName));
+            projectMetrics = metrics.get(webappName);
+        }
+        return projectMetrics;
+    }
+
+    private void registerMetrics(SyncMetrics projectMetrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getMetricsObjectName(projectMetrics.getWebappName());
+            // left over from a previous deployment that wasn't shut down properly
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(projectMetrics, name);
+        } catch (JMException ex) {
+            logger.warn("Failed to expose the metrics of " + projectMetrics.getWebappName() + " through JMX", ex);
+        }
+    }
+
+    private void unregisterMetrics() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String webappName : metrics.keySet()) {
+            try {
+                ObjectName name = getMetricsObjectName(webappName);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException ex) {
+                logger.warn("Failed to unregister the metrics of " + webappName, ex);
+            }
+        }
+    }
+
+    private ObjectName getMetricsObjectName(String webappName) throws MalformedObjectNameException {
+        return new ObjectName("bg.bozho.aardwark:type=SyncMetrics,name=" + ObjectName.quote(webappName));
+    }
+
+    /**
+     * Registers a module of the workspace the project depends on. Its classes are synced instead of its jar.
+     */
+    private void addWorkspaceProject(String webappName, Path projectPath, Model model) {
+        List<Path> projects = workspaceProjects.get(webappName);
+        if (projects == null) {
+            workspaceProjects.put(webappName, projects = new CopyOnWriteArrayList<>());
+        }
+        if (!projects.contains(projectPath)) {
+            projects.add(projectPath);
+        }
+        Set<String> artifacts = workspaceArtifacts.get(webappName);
+        if (artifacts == null) {
+            workspaceArtifacts.put(webappName, artifacts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        }
+        String groupId = model.getGroupId() != null || model.getParent() == null ? model.getGroupId() : model.getParent().getGroupId();
+        artifacts.add(groupId + ":" + model.getArtifactId());
+    }
+
+    private List<Path> getWorkspaceProjects(String webappName) {
+        List<Path> projects = workspaceProjects.get(webappName);
+        return projects != null ? projects : Collections.<Path>emptyList();
+    }
+
+    /**
+     * @return the groupId:artifactId of the workspace modules whose classes are synced
+     */
+    private Set<String> getWorkspaceArtifacts(String webappName) {
+        Set<String> artifacts = workspaceArtifacts.get(webappName);
+        return artifacts != null ? artifacts : Collections.<String>emptySet();
+    }
+
+    private SyncManifest getManifest(String webappName) {
+        SyncManifest manifest = manifests.get(webappName);
+        if (manifest == null) {
+            manifests.put(webappName, manifest = new SyncManifest());
+        }
+        return manifest;
+    }
+
+    private void saveManifests() {
+        for (Map.Entry<String, SyncManifest> entry : manifests.entrySet()) {
+            try {
+                entry.getValue().save(getSyncManifestFile(entry.getKey()));
+            } catch (IOException ex) {
+                logger.warn("Failed to save sync manifest of " + entry.getKey(), ex);
+            }
+        }
+    }
+
+    /**
+     * Re-scans the synced directories of the project and applies whatever differs from the last known state
+     * (e.g. because events have been lost). Runs in the background.
+     * @return false if there is no such project (or it hasn't been set up yet)
+     */
+    public boolean reconcile(String webappName) {
+        Path projectPath = projectPaths.get(webappName);
+        if (projectPath == null || reconciler == null) {
+            return false;
+        }
+        scheduleReconciliation(webappName, projectPath, projectPath);
+        return true;
+    }
+
+    /**
+     * Registers the directories that were recreated by a rebuild (no events were handled in the meantime) and syncs the
+     * rebuilt projects in bulk, so that only the files that actually differ are touched
+     */
+    private void resyncAfterRebuild(String webappName, Collection<WatchableDirectory> projects) {
+        for (WatchableDirectory project : projects) {
+            try {
+                watchProject(webappName, project.getProjectPath(), project.getMavenModel(), project.isDependencyProject());
+            } catch (IOException ex) {
+                logger.warn("Failed to watch " + project.getProjectPath() + " after rebuild", ex);
+            }
+            scheduleReconciliation(webappName, project.getProjectPath(), project.getProjectPath());
+        }
+    }
+
+    /**
+     * Reconciles the part of the synced directories that is within the given directory
+     */
+    private void scheduleReconciliation(String webappName, Path projectPath, Path dir) {
+        Path target = determineTarget(webappName, dir, projectPath);
+        if (target != null) {
+            reconciler.schedule(webappName, dir, target, getManifest(webappName), getSyncTarget(webappName), getMetrics(webappName));
+            return;
+        }
+        for (Path root : getWatchRoots(projectPath)) {
+            if (root.startsWith(dir)) {
+                reconciler.schedule(webappName, root, determineTarget(webappName, root, projectPath),
+                        getManifest(webappName), getSyncTarget(webappName), getMetrics(webappName));
+            }
+        }
     }
 
-    private List<String> getProjectDirectories(ServletContextEvent sce) {
-        // if there's a properties file, read it and determine the target project path
+    private List<String> readPropertiesFile(ServletContextEvent sce) {
         Path webappsDirectory = fs.getPath(sce.getServletContext().getRealPath("/")).getParent();
         Path propertiesFile = webappsDirectory.resolve("aardwark.properties");
         if (Files.exists(propertiesFile)) {
            try {
-                List<String> lines = Files.readAllLines(propertiesFile, Charset.forName("UTF-8"));
-                if (!lines.isEmpty()) {
-                    return lines;
-                }
+                return Files.readAllLines(propertiesFile, Charset.forName("UTF-8"));
            } catch (IOException e) {
                throw new IllegalStateException(e);
            }
         }
+        return Collections.emptyList();
+    }
+
+    private List<String> getProjectDirectories(ServletContextEvent sce, List<String> propertiesLines) {
+        // if there's a properties file, read it and determine the target project path.
+        // Lines with key=value are settings rather than projects
+        List<String> projectDirs = new ArrayList<>();
+        for (String line : propertiesLines) {
+            if (!line.trim().isEmpty() && !line.trim().startsWith("#") && !SyncSettings.isSettingLine(line)) {
+                projectDirs.add(line.trim());
+            }
+        }
+        if (!projectDirs.isEmpty()) {
+            return projectDirs;
+        }
         // default to the war filename
         return Arrays.asList(sce.getServletContext().getContextPath().replace("/aardwark-", "").replace('.', '/'));
     }
@@ -207,97 +709,191 @@ public class StartupListener implements ServletContextListener {
         List<String> modules = model.getModules();
         if ((modules == null || modules.isEmpty())) {
             if (dependencies.contains(model.getArtifactId())) {
+                Model effectiveModel = buildEffectiveModel(webappName, projectPath);
+                // only the classes of the module end up in the webapp
+                buildRoutingTable(projectPath, effectiveModel, false);
+                addWorkspaceProject(webappName, projectPath, effectiveModel != null ? effectiveModel : model);
                 watchProject(webappName, projectPath, null, true);
             }
         } else {
-            for (String module : modules) {
-                Path modulePath = projectPath.resolve(module);
-                Model moduleModel = readMavenModel(modulePath.toString());
-                watchDependentProjects(webappName, moduleModel, dependencies, modulePath);
+            Set<Path> modulePaths = new LinkedHashSet<>();
+            findDependentModules(projectPath, dependencies, modulePaths);
+            for (Path modulePath : modulePaths) {
+                watchDependentProjects(webappName, readMavenModel(modulePath.toString()), dependencies, modulePath);
             }
         }
     }
 
-    private void watchProject(final String webappName, final Path projectPath, final Model model, final boolean dependencyProject)
+    /**
+     * Rather than walking the whole reactor, only the modules that are dependencies are looked up in its index
+     */
+    private void findDependentModules(Path reactorPath, Set<String> dependencies, Set<Path> modulePaths) throws IOException {
+        Map<String, List<Path>> reactorModules = modelCache.getModules(reactorPath);
+        for (String dependency : dependencies) {
+            List<Path> paths = reactorModules.get(dependency);
+            if (paths != null) {
+                modulePaths.addAll(paths);
+            }
+        }
+    }
+
+    /**
+     * Watches only the directories whose contents are synced (see {@link #getWatchRoots(Path)}), and
+     * the project directory itself (for changes of the pom)
+     */
+    void watchProject(final String webappName, final Path projectPath, final Model model, final boolean dependencyProject)
             throws IOException {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        if (watchDirectory(webappName, projectPath, model, dependencyProject, projectPath)) {
+            count++;
+        }
+        for (Path root : getWatchRoots(projectPath)) {
+            if (Files.isDirectory(root)) {
+                count += watchTree(webappName, projectPath, model, dependencyProject, root, null);
+            }
+            // watch the directories leading to the root, so that its (re)creation is noticed
+            for (Path dir = root.getParent(); dir != null && !dir.equals(projectPath) && dir.startsWith(projectPath);
+                    dir = dir.getParent()) {
+                if (Files.isDirectory(dir) && watchDirectory(webappName, projectPath, model, dependencyProject, dir)) {
+                    count++;
+                }
+            }
+        }
+        logger.info("Registered " + count + " watches for " + (dependencyProject ? "dependency project " : "")
+                + projectPath + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
 
-        Files.walkFileTree(projectPath, new SimpleFileVisitor<Path>() {
+    /**
+     * The directories whose contents end up in the webapp (i.e. those that {@link #determineTarget(String, Path, Path)} maps)
+     */
+    private List<Path> getWatchRoots(Path projectPath) {
+        List<Path> roots = new ArrayList<>();
+        for (RoutingTable.Route route : getRoutingTable(projectPath).getRoutes()) {
+            roots.add(route.getSource());
+        }
+        return roots;
+    }
+
+    /**
+     * Registers the directory and the ones below it, skipping excluded subtrees.
+     * @param dispatcher if not null, files already in the tree are passed to it as created - used for directories that
+     * are created while watching, as their contents may be written before the watch is registered
+     * @return the number of registered watches
+     */
+    private int watchTree(final String webappName, final Path projectPath, final Model model, final boolean dependencyProject,
+            final Path root, final ProjectDispatcher dispatcher) throws IOException {
+        final int[] count = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                watchDirectory(webappName, projectPath, model, dependencyProject, dir);
+                if (watchFilter.isExcluded(projectPath, dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (watchFilter.isIncluded(projectPath, dir)
+                        && watchDirectory(webappName, projectPath, model, dependencyProject, dir)) {
+                    count[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (dispatcher != null && !WatchFilter.isHidden(file)) {
+                    Path target = determineTarget(webappName, file, projectPath);
+                    if (target != null) {
+                        dispatcher.offer(createChange(FileChange.Kind.CREATE, file, target,
+                                new WatchableDirectory(file.getParent(), projectPath, dependencyProject, model, webappName)));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // e.g. deleted in the meantime
                 return FileVisitResult.CONTINUE;
             }
         });
+        return count[0];
     }
 
-    private void watchDirectory(final String webappName, final Path projectPath, final Model model,
+    private boolean watchDirectory(final String webappName, final Path projectPath, final Model model,
             final boolean dependencyProject, Path dir) throws IOException {
-        // do not watch .settings, .svn, etc.
-        if (dir.getFileName().startsWith(".")) {
-            return;
+        WatchKey key = getChangeDetector(webappName).register(dir);
+        WatchableDirectory watchableDirectory = new WatchableDirectory(dir, projectPath, dependencyProject, model, webappName);
+        synchronized (watched) {
+            List<WatchableDirectory> directories = watched.get(key);
+            if (directories == null) {
+                directories = new CopyOnWriteArrayList<>();
+                watched.put(key, directories);
+            }
+            for (int i = 0; i < directories.size(); i++) {
+                if (directories.get(i).getWebappName().equals(webappName)) {
+                    directories.set(i, watchableDirectory);
+                    return false;
+                }
+            }
+            directories.add(watchableDirectory);
+        }
+        getMetrics(webappName).watchAdded();
+        return true;
+    }
+
+    /**
+     * Stops watching the directories of the webapp. Directories that are watched for other webapps as well keep their key
+     */
+    void unwatch(String webappName) {
+        synchronized (watched) {
+            for (Iterator<Map.Entry<WatchKey, List<WatchableDirectory>>> it = watched.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<WatchKey, List<WatchableDirectory>> entry = it.next();
+                for (WatchableDirectory watchableDirectory : entry.getValue()) {
+                    if (watchableDirectory.getWebappName().equals(webappName)) {
+                        entry.getValue().remove(watchableDirectory);
+                        getMetrics(webappName).watchRemoved();
+                    }
+                }
+                if (entry.getValue().isEmpty()) {
+                    it.remove();
+                    entry.getKey().cancel();
+                }
+            }
         }
-        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
-                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
-        watched.put(key, new WatchableDirectory(dir, projectPath, dependencyProject, model, webappName));
     }
 
-    private void startWatching() {
+    /**
+     * Starts watching a directory that has been created in a watched directory - either within one
+     * of the watch roots, or on the way to one (e.g. target/ after a clean build)
+     */
+    private void directoryCreated(WatchableDirectory parent, ProjectDispatcher dispatcher, Path dir) throws IOException {
+        Path projectPath = parent.getProjectPath();
+        for (Path root : getWatchRoots(projectPath)) {
+            if (dir.startsWith(root)) {
+                watchTree(parent.getWebappName(), projectPath, parent.getMavenModel(), parent.isDependencyProject(), dir, dispatcher);
+                return;
+            }
+            if (root.startsWith(dir)) {
+                watchDirectory(parent.getWebappName(), projectPath, parent.getMavenModel(), parent.isDependencyProject(), dir);
+                Path next = dir.resolve(root.getName(dir.getNameCount()));
+                if (Files.isDirectory(next)) {
+                    directoryCreated(parent, dispatcher, next);
+                }
+            }
+        }
+    }
+
+    private void startWatching(final ChangeDetector changeDetector) {
         executor.submit(new Runnable() {
             @Override
             public void run() {
                 try {
                     WatchKey key;
-                    while ((key = watcher.take()) != null) {
-                        List<WatchEvent<?>> events = key.pollEvents();
-                        WatchableDirectory watchableDirectory = watched.get(key);
-                        for (WatchEvent<?> event : events) {
-                            try {
-                                Path filename = (Path) event.context();
-                                // do not copy .settings, .classpath, etc.
-                                if (filename.getFileName().startsWith(".")) {
-                                    continue;
-                                }
-                                Path eventPath = watchableDirectory.getDirectory().resolve(filename);
-                                Path target = determineTarget(watchableDirectory.getWebappName(), eventPath, watchableDirectory.getProjectPath());
-                                if (target != null) {
-                                    if (Files.isDirectory(eventPath) && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                        continue; // skip MODIFY events for directories - they do not convey any information
-                                    }
-                                    if (Files.notExists(eventPath) && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                        continue; // MODIFY may be triggered for deleted directories
-                                    }
-                                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE || event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                        if (!Files.isDirectory(eventPath)) {
-                                            // make sure directory structure is in place
-                                            target.getParent().toFile().mkdirs();
-                                            Files.copy(eventPath, target, StandardCopyOption.REPLACE_EXISTING);
-                                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE){
-                                            target.toFile().mkdirs();
-                                            // if this is a new directory, watch it as well
-                                            watchDirectory(watchableDirectory.getWebappName(), watchableDirectory.getProjectPath(), watchableDirectory.getMavenModel(), false, eventPath);
-                                        }
-                                    }
-                                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
-                                        Files.deleteIfExists(target);
-                                    }
-                                }
-                            } catch (IOException ex) {
-                                logger.warn("Exception while watching directory", ex);
-                            }
-                        }
-                        if (!key.reset()) { // reset, in order to receive further events
-                            watched.remove(key); // the directory is no longer accessible
-                        }
-                        // changes in files in dependency projects must trigger
-                        // dependency copy on next deploy, as the updated
-                        // classes will be packaged in new versions of the jars
-                        if (watchableDirectory.isDependencyProject()) {
-                            writeDependencyCopyNeeded(watchableDirectory.getWebappName());
-                        }
+                    while ((key = changeDetector.take()) != null) {
+                        eventsTaken(key);
                     }
-                } catch (InterruptedException ex) {
-                    logger.warn("Watching thread interrupted", ex);
-                    // return - the executor has been shutdown
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    // return - the listener has been destroyed
+                    logger.info("Stopped watching for changes (" + changeDetector.getName() + ")");
                 } catch (Exception ex) {
                     logger.error("Exception occurred", ex);
                 }
@@ -305,25 +901,169 @@ public class StartupListener implements ServletContextListener {
         });
     }
 
-    private Model readMavenModel(String baseDir) throws FileNotFoundException, IOException {
-        Reader reader = null;
-        try {
-            Path pomPath = fs.getPath(baseDir, "pom.xml");
-            if (Files.notExists(pomPath)) {
-                return null;
+    /**
+     * Passes the events of the key to each webapp watching its directory
+     */
+    void eventsTaken(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        List<WatchableDirectory> directories = watched.get(key);
+        if (directories != null) {
+            for (WatchableDirectory watchableDirectory : directories) {
+                dispatchEvents(watchableDirectory, events);
             }
-            reader = new FileReader(pomPath.toFile());
-            MavenXpp3Reader xpp3Reader = new MavenXpp3Reader();
-            return xpp3Reader.read(reader);
-        } catch (XmlPullParserException e) {
-            throw new IllegalStateException("Cannot read maven model");
-        } finally {
-            if (reader != null) {
-                reader.close();
+        }
+        if (!key.reset()) { // reset, in order to receive further events
+            // the directory is no longer accessible
+            synchronized (watched) {
+                directories = watched.remove(key);
+            }
+            if (directories != null) {
+                for (WatchableDirectory watchableDirectory : directories) {
+                    getMetrics(watchableDirectory.getWebappName()).watchRemoved();
+                }
             }
         }
     }
 
+    void dispatchEvents(WatchableDirectory watchableDirectory, List<WatchEvent<?>> events) {
+        ProjectDispatcher dispatcher;
+        synchronized (readinessLock) {
+            dispatcher = dispatchers.get(watchableDirectory.getWebappName());
+            List<DeferredEvents> deferred = deferredEvents.get(watchableDirectory.getWebappName());
+            if (dispatcher == null && deferred != null) {
+                // the project is still being set up - handled once it is ready
+                deferred.add(new DeferredEvents(watchableDirectory, events));
+            }
+        }
+        // otherwise the project has failed to be set up
+        if (dispatcher != null) {
+            handleEvents(watchableDirectory, events, dispatcher);
+        }
+    }
+
+    private void handleEvents(WatchableDirectory watchableDirectory, List<WatchEvent<?>> events, ProjectDispatcher dispatcher) {
+        SyncMetrics projectMetrics = getMetrics(watchableDirectory.getWebappName());
+        RebuildDetector rebuildDetector = dispatcher.getRebuildDetector();
+        boolean dependencyPomChanged = false;
+        for (WatchEvent<?> event : events) {
+            try {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events have been lost - compare the whole subtree instead
+                    projectMetrics.overflow();
+                    if (!rebuildDetector.eventReceived(watchableDirectory, false, Collections.<Path>emptyList())) {
+                        continue; // the whole project is synced after the rebuild anyway
+                    }
+                    logger.warn("Too many changes in " + watchableDirectory.getDirectory() + ", some events were lost. Reconciling");
+                    scheduleReconciliation(watchableDirectory.getWebappName(), watchableDirectory.getProjectPath(), watchableDirectory.getDirectory());
+                    continue;
+                }
+                projectMetrics.eventReceived();
+                Path filename = (Path) event.context();
+                if (filename.toString().equals("pom.xml") && watchableDirectory.getDirectory().equals(watchableDirectory.getProjectPath())) {
+                    // the cached models built from the pom are checked on access anyway, but it may have been
+                    // rewritten within the same millisecond and with the same size
+                    modelCache.invalidate(watchableDirectory.getDirectory().resolve(filename));
+                    dependencyPomChanged |= watchableDirectory.isDependencyProject();
+                }
+                // do not copy .settings, .classpath, etc.
+                if (WatchFilter.isHidden(filename)) {
+                    continue;
+                }
+                Path eventPath = watchableDirectory.getDirectory().resolve(filename);
+                Path target = determineTarget(watchableDirectory.getWebappName(), eventPath, watchableDirectory.getProjectPath());
+                boolean delete = event.kind() == StandardWatchEventKinds.ENTRY_DELETE;
+                if (!rebuildDetector.eventReceived(watchableDirectory, delete && target != null,
+                        delete ? getDeletedRoots(watchableDirectory.getProjectPath(), eventPath) : Collections.<Path>emptyList())) {
+                    continue; // a clean build is in progress - the project is synced in bulk once it is over
+                }
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(eventPath)
+                        && !watchFilter.isExcluded(watchableDirectory.getProjectPath(), eventPath)) {
+                    // if this is a new directory, watch it right away, so that no events within it are missed
+                    directoryCreated(watchableDirectory, dispatcher, eventPath);
+                }
+                if (target != null) {
+                    if (Files.isDirectory(eventPath) && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                        continue; // skip MODIFY events for directories - they do not convey any information
+                    }
+                    if (Files.notExists(eventPath) && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                        continue; // MODIFY may be triggered for deleted directories
+                    }
+                    // the actual copying happens once the events for the file settle
+                    dispatcher.offer(createChange(toChangeKind(event.kind()), eventPath, target, watchableDirectory));
+                }
+            } catch (IOException | RuntimeException ex) {
+                // must not stop the thread - it serves all projects
+                logger.warn("Exception while watching directory", ex);
+            }
+        }
+        // changes of the poms of dependency projects must trigger
+        // dependency copy on next deploy, as they may change the
+        // transitive dependencies (their classes are synced live)
+        if (dependencyPomChanged) {
+            try {
+                invalidateDependencyFingerprint(watchableDirectory.getWebappName());
+            } catch (IOException ex) {
+                logger.warn("Failed to mark dependencies of " + watchableDirectory.getWebappName() + " for copying", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the synced directories that are gone along with the deleted path
+     */
+    private List<Path> getDeletedRoots(Path projectPath, Path deletedPath) {
+        List<Path> deletedRoots = new ArrayList<>();
+        for (Path root : getWatchRoots(projectPath)) {
+            if (root.startsWith(deletedPath)) {
+                deletedRoots.add(root);
+            }
+        }
+        return deletedRoots;
+    }
+
+    private FileChange createChange(FileChange.Kind kind, Path source, Path target, WatchableDirectory watchableDirectory) {
+        FileChange.Lane lane = getRoutingTable(watchableDirectory.getProjectPath()).getLane(source);
+        return new FileChange(kind, source, target, watchableDirectory, lane);
+    }
+
+    private FileChange.Kind toChangeKind(WatchEvent.Kind<?> kind) {
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            return FileChange.Kind.CREATE;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            return FileChange.Kind.DELETE;
+        }
+        return FileChange.Kind.MODIFY;
+    }
+
+    private void applyChange(FileChange change) throws IOException {
+        Path source = change.getSource();
+        Path target = change.getTarget();
+        String webappName = change.getWatchableDirectory().getWebappName();
+        if (change.getKind() == FileChange.Kind.DELETE) {
+            getSyncTarget(webappName).delete(target);
+            getManifest(webappName).remove(source);
+            getMetrics(webappName).changeApplied(change, 0);
+        } else if (Files.isDirectory(source)) {
+            getSyncTarget(webappName).createDirectories(target);
+        } else if (Files.exists(source)) {
+            // make sure directory structure is in place
+            getSyncTarget(webappName).createDirectories(target.getParent());
+            getSyncTarget(webappName).transfer(source, target);
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            getManifest(webappName).put(source, new SyncManifest.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+            getMetrics(webappName).changeApplied(change, attributes.size());
+        }
+        // otherwise the file has been deleted in the meantime and a DELETE change follows
+    }
+
+    /**
+     * @return the model of the pom in the directory, or null if there is none. Shared by all projects, so must not be modified
+     */
+    private Model readMavenModel(String baseDir) throws IOException {
+        return modelCache.getModel(fs.getPath(baseDir));
+    }
+
     private String getTargetWebapp(Model model) {
         if (model.getBuild() != null) {
             for (Plugin plugin : model.getBuild().getPlugins()) {
@@ -340,56 +1080,167 @@ public class StartupListener implements ServletContextListener {
     }
 
     Path determineTarget(String webappName, Path filePath, Path projectPath) {
-        if (filePath.toString().contains("src" + File.separator + "main" + File.separator + "webapp")) {
-            Path pathWithinProject = projectPath.resolve("src/main/webapp").relativize(filePath);
-            return webappPaths.get(webappName).resolve(pathWithinProject);
-        }
-        if (filePath.toString().contains("target" + File.separator + "classes")) {
-            Path pathWithinClasspath = projectPath.resolve("target/classes").relativize(filePath);
-            return webappPaths.get(webappName).resolve("WEB-INF/classes").resolve(pathWithinClasspath);
+        return getRoutingTable(projectPath).resolve(filePath, webappPaths.get(webappName));
+    }
+
+    /**
+     * @return the routing table of the project, defaulting to the standard maven layout if it hasn't been built
+     */
+    RoutingTable getRoutingTable(Path projectPath) {
+        RoutingTable routingTable = routingTables.get(projectPath);
+        if (routingTable == null) {
+            routingTable = RoutingTable.create(projectPath, null);
+            routingTables.put(projectPath, routingTable);
         }
+        return routingTable;
+    }
 
-        return null;
+    private void buildRoutingTable(Path projectPath, Model effectiveModel, boolean webResources) {
+        RoutingTable routingTable = RoutingTable.create(projectPath, effectiveModel, webResources);
+        routingTables.put(projectPath, routingTable);
+        logger.debug("Routes of " + projectPath + ": " + routingTable.getRoutes());
     }
 
-    private void copyDependencies(String webappName, Model model) throws IOException {
+    /**
+     * @param effectiveModel the effective model of the project, or null if it couldn't be built
+     */
+    private void copyDependencies(String webappName, Model effectiveModel) throws IOException {
         final Path lib = webappPaths.get(webappName).resolve("WEB-INF/lib");
-        lib.toFile().mkdirs();
-        File[] libs = lib.toFile().listFiles();
-        if (libs != null) {
-            for (File libFile : libs) {
-                libFile.delete();
+
+        // resolving within the JVM from the local repository is much faster than running maven,
+        // so maven is used only if some dependencies have to be downloaded
+        Map<String, Path> libraries = effectiveModel != null ? resolveDependencies(webappName, effectiveModel) : null;
+        Path librariesSource = dependencyResolver.getLocalRepository();
+        if (libraries == null) {
+            librariesSource = fs.getPath(System.getProperty("java.io.tmpdir"), webappName + "-dependencies");
+            libraries = copyDependenciesWithMaven(webappName, projectPaths.get(webappName), getWorkspaceArtifacts(webappName), librariesSource);
+        }
+
+        // only the jars that differ are replaced
+        SyncTarget syncTarget = remoteTarget;
+        if (syncTarget == null) {
+            lib.toFile().mkdirs();
+            syncTarget = SyncTarget.local(TransferStrategy.detect(librariesSource, lib,
+                    settings.getString(SyncSettings.TRANSFER_MODE, TransferStrategy.AUTO),
+                    settings.getLong(SyncSettings.TRANSFER_LARGE_FILE_THRESHOLD, 1024 * 1024)));
+        }
+        DirectorySync.Result result = directorySync.syncFiles(libraries, lib, syncTarget);
+        getMetrics(webappName).synced(result);
+        logger.info("Copying dependencies of " + webappName + " successful: " + result);
+    }
+
+    /**
+     * @return the jars to put in WEB-INF/lib, by file name, or null if they cannot be resolved from the local repository
+     */
+    private Map<String, Path> resolveDependencies(String webappName, Model effectiveModel) {
+        try {
+            Map<String, Path> libraries = new HashMap<>();
+            Set<String> workspaceArtifacts = getWorkspaceArtifacts(webappName);
+            for (Artifact artifact : dependencyResolver.resolveRuntimeDependencies(effectiveModel)) {
+                // the classes of workspace modules are synced instead
+                if ("jar".equals(artifact.getExtension())
+                        && !workspaceArtifacts.contains(artifact.getGroupId() + ":" + artifact.getArtifactId())) {
+                    libraries.put(DependencyResolver.getLibraryFileName(artifact), artifact.getFile().toPath());
+                }
             }
+            return libraries;
+        } catch (DependencyResolutionException ex) {
+            logger.info("Cannot resolve dependencies of " + webappName + " from the local repository, running maven instead: " + ex.getMessage());
+            return null;
         }
+    }
 
+    /**
+     * Synchronized, as maven relies on global state (e.g. system properties) and cannot run for several projects at once
+     */
+    private static synchronized Map<String, Path> copyDependenciesWithMaven(String webappName, Path projectPath,
+            Set<String> workspaceArtifacts, Path outputDirectory) throws IOException {
         logger.info("Copying maven dependencies of " + webappName + ". This may take some time, as some dependencies may have to be downloaded from a remote repository.");
+        outputDirectory.toFile().mkdirs();
+        // the jars of a previous run would otherwise be synced as well, even if they are no longer dependencies
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDirectory)) {
+            for (Path previous : stream) {
+                if (Files.isRegularFile(previous, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(previous);
+                }
+            }
+        }
+
+        List<String> arguments = new ArrayList<>(Arrays.asList("dependency:copy-dependencies", "-DincludeScope=runtime",
+                "-DoutputDirectory=" + outputDirectory.toString()));
+        // the classes of workspace modules are synced instead
+        Set<String> excludedArtifactIds = new TreeSet<>();
+        for (String artifact : workspaceArtifacts) {
+            excludedArtifactIds.add(artifact.substring(artifact.indexOf(':') + 1));
+        }
+        if (!excludedArtifactIds.isEmpty()) {
+            arguments.add("-DexcludeArtifactIds=" + Joiner.on(',').join(excludedArtifactIds));
+        }
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         PrintStream out = new PrintStream(baos);
         MavenCli cli = new MavenCli();
-        cli.doMain(new String[] {"dependency:copy-dependencies", "-DoutputDirectory=" + lib.toString()}, projectPaths.get(webappName).toString(), out, out);
+        cli.doMain(arguments.toArray(new String[arguments.size()]), projectPath.toString(), out, out);
         out.close();
         String output = baos.toString("UTF-8");
         if (output.contains("FAILURE")) {
             logger.warn("Problem with copying dependencies of " + webappName + ": " + output);
         }
-        logger.info("Copying dependencies of " + webappName + " successful");
-        writeDependencyCopyNeeded(webappName);
-    }
 
-    private void writeDependencyCopyNeeded(String webappName) throws IOException {
-        Files.write(getDependencyCopyMetaFile(webappName), Lists.newArrayList(dateTimeFormatter.print(new DateTime())), Charset.forName("UTF-8"));
+        Map<String, Path> libraries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDirectory, "*.jar")) {
+            for (Path library : stream) {
+                libraries.put(library.getFileName().toString(), library);
+            }
+        }
+        return libraries;
     }
 
     public void contextDestroyed(ServletContextEvent sce) {
-        try {
-            watcher.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        shutdown();
+        sce.getServletContext().removeAttribute(METRICS_ATTRIBUTE);
+        sce.getServletContext().removeAttribute(LISTENER_ATTRIBUTE);
+    }
+
+    /**
+     * Stops watching and releases the components shared by all projects
+     */
+    void shutdown() {
+        synchronized (changeDetectors) {
+            for (ChangeDetector changeDetector : changeDetectors.values()) {
+                try {
+                    changeDetector.close();
+                } catch (Exception e) {
+                    logger.warn("Failed to close " + changeDetector.getName() + " change detection", e);
+                }
+            }
+            changeDetectors.clear();
+        }
+        if (initExecutor != null) {
+            initExecutor.shutdownNow();
         }
         if (executor != null) {
             executor.shutdownNow();
         }
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        for (ProjectDispatcher dispatcher : dispatchers.values()) {
+            dispatcher.shutdown();
+        }
+        dispatchers.clear();
+        watched.clear();
+        if (reconciler != null) {
+            reconciler.shutdown();
+        }
+        if (directorySync != null) {
+            directorySync.shutdown();
+        }
+        if (remoteTarget != null) {
+            remoteTarget.close();
+        }
+        saveManifests();
+        unregisterMetrics();
     }
 
     public void addProjectPath(String webappName, Path projectPath) {
@@ -401,7 +1252,29 @@ public class StartupListener implements ServletContextListener {
     }
 
     public void setWatcher(WatchService watcher) {
-        this.watcher = watcher;
+        setChangeDetector(ChangeDetector.NATIVE, ChangeDetector.watching(watcher));
+    }
+
+    /**
+     * Uses the given detector for the webapps with the given backend, without taking events from it
+     */
+    void setChangeDetector(String name, ChangeDetector changeDetector) {
+        synchronized (changeDetectors) {
+            changeDetectors.put(name, changeDetector);
+        }
+    }
+
+    /**
+     * Events taken from the watch service before the project they belong to is ready
+     */
+    private static class DeferredEvents {
+        private final WatchableDirectory watchableDirectory;
+        private final List<WatchEvent<?>> events;
+
+        DeferredEvents(WatchableDirectory watchableDirectory, List<WatchEvent<?>> events) {
+            this.watchableDirectory = watchableDirectory;
+            this.events = events;
+        }
     }
 
     public static class WatchableDirectory {
@@ -0,0 +1,51 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the sync metrics of all projects (or of the one given with the <code>project</code> parameter) as JSON
+ */
+@WebServlet("/status")
+public class StatusServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        @SuppressWarnings("unchecked")
+        Map<String, SyncMetrics> metrics = (Map<String, SyncMetrics>) getServletContext().getAttribute(StartupListener.METRICS_ATTRIBUTE);
+        String project = request.getParameter("project");
+        if (project != null && (metrics == null || !metrics.containsKey(project))) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such project: " + project);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer = response.getWriter();
+        if (project != null) {
+            writer.write(metrics.get(project).toJson());
+            return;
+        }
+        writer.write("{\"projects\":[");
+        if (metrics != null) {
+            boolean first = true;
+            for (SyncMetrics projectMetrics : metrics.values()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writer.write(projectMetrics.toJson());
+                first = false;
+            }
+        }
+        writer.write("]}");
+    }
+}
@@ -0,0 +1,461 @@
+package bg.bozho.aardwark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Receives the changes sent by a {@link RemoteSyncTarget} and applies them to the webapps directory of a servlet
+ * container that aardWARk cannot write to directly (e.g. one running in a container or a VM). Runs next to the
+ * container, with the classes of aardWARk on the classpath:
+ * <pre>java -cp aardwark-classes.jar:... bg.bozho.aardwark.SyncAgent &lt;webapps directory&gt; [port] [bind address]</pre>
+ * If the <code>aardwark.agent.token</code> system property is set, only senders presenting the same token are accepted.
+ * Without a token the agent only listens on a loopback address.
+ */
+public class SyncAgent implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncAgent.class);
+
+    private final Path root;
+    private final String token;
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("aardwark-agent-%d").setDaemon(true).build());
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * @param token if not null (or empty), the token senders have to present
+     */
+    public SyncAgent(Path root, String token) {
+        this.root = root.toAbsolutePath().normalize();
+        this.token = token == null || token.isEmpty() ? null : token;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: SyncAgent <webapps directory> [port] [bind address]");
+            System.exit(1);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : SyncProtocol.DEFAULT_PORT;
+        String bindAddress = args.length > 2 ? args[2] : "127.0.0.1";
+        SyncAgent agent = new SyncAgent(Paths.get(args[0]), System.getProperty(SyncSettings.SYSTEM_PROPERTY_PREFIX + "agent.token"));
+        agent.start(bindAddress, port);
+        logger.info("Receiving changes for " + agent.root + " on " + bindAddress + ":" + agent.getPort());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Starts accepting connections in the background
+     * @param port the port to listen on; 0 for any free port
+     * @return the port listened on
+     * @throws IllegalStateException if no token is set and the address is not a loopback one
+     */
+    public int start(String bindAddress, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(bindAddress, port);
+        if (token == null && (address.isUnresolved() || !address.getAddress().isLoopbackAddress())) {
+            throw new IllegalStateException("Refusing to listen on " + bindAddress + " without a token; set "
+                    + SyncSettings.SYSTEM_PROPERTY_PREFIX + "agent.token or bind to a loopback address");
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (RuntimeException ex) {
+                                    // the connection is closed by then; the sender only sees it dropped
+                                    logger.error("Failed to serve " + socket.getRemoteSocketAddress(), ex);
+                                }
+                            }
+                        });
+                    } catch (IOException ex) {
+                        if (!serverSocket.isClosed()) {
+                            logger.warn("Failed to accept connection", ex);
+                        }
+                    }
+                }
+            }
+        });
+        return getPort();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to close server socket", ex);
+        }
+        executor.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        Map<Integer, Upload> uploads = new HashMap<>();
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+            if (!handshake(in, out)) {
+                return;
+            }
+            logger.info("Connected to " + connection.getRemoteSocketAddress());
+            int operation;
+            while ((operation = in.read()) != -1) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                try {
+                    handle((byte) operation, in, new DataOutputStream(result), uploads);
+                    out.writeByte(SyncProtocol.OK);
+                    result.writeTo(out);
+                } catch (RequestFailedException ex) {
+                    out.writeByte(SyncProtocol.ERROR);
+                    out.writeUTF(String.valueOf(ex.getMessage()));
+                }
+                // answers are sent in batches, once there are no more requests to handle
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException ex) {
+            // the sender has gone away
+        } catch (IOException ex) {
+            logger.warn("Connection to sender failed", ex);
+        } finally {
+            for (Upload upload : uploads.values()) {
+                upload.abort();
+            }
+        }
+    }
+
+    private boolean handshake(DataInputStream in, DataOutputStream out) throws IOException {
+        if (in.read() != SyncProtocol.HELLO) {
+            return false;
+        }
+        int version = in.readInt();
+        String presentedToken = in.readUTF();
+        String error = null;
+        if (version != SyncProtocol.VERSION) {
+            error = "Unsupported protocol version " + version + ", expected " + SyncProtocol.VERSION;
+        } else if (token != null && !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                presentedToken.getBytes(StandardCharsets.UTF_8))) {
+            error = "Invalid token";
+        }
+        if (error != null) {
+            out.writeByte(SyncProtocol.ERROR);
+            out.writeUTF(error);
+        } else {
+            out.writeByte(SyncProtocol.OK);
+        }
+        out.flush();
+        return error == null;
+    }
+
+    /**
+     * Reads the whole request before applying it, so that the stream stays in step even if it fails
+     */
+    private void handle(byte operation, DataInputStream in, DataOutputStream result, Map<Integer, Upload> uploads) throws IOException {
+        switch (operation) {
+        case SyncProtocol.LIST:
+            list(resolve(in.readUTF()), result);
+            break;
+        case SyncProtocol.SIGNATURE: {
+            String path = in.readUTF();
+            int blockSize = in.readInt();
+            signature(resolve(path), blockSize, result);
+            break;
+        }
+        case SyncProtocol.BEGIN: {
+            int id = in.readInt();
+            String path = in.readUTF();
+            int blockSize = in.readInt();
+            Upload upload = new Upload(blockSize);
+            uploads.put(id, upload);
+            try {
+                upload.begin(resolve(path));
+            } catch (RequestFailedException ex) {
+                // reported at the end of the upload
+                upload.failed(ex.getMessage());
+            }
+            break;
+        }
+        case SyncProtocol.DATA: {
+            Upload upload = uploads.get(in.readInt());
+            int length = in.readInt();
+            if (length < 0 || length > SyncProtocol.MAX_DATA_LENGTH) {
+                // the stream can't be trusted to be in step any more
+                throw new IOException("Invalid data length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if (upload != null) {
+                upload.write(data);
+            }
+            break;
+        }
+        case SyncProtocol.COPY: {
+            Upload upload = uploads.get(in.readInt());
+            int firstBlock = in.readInt();
+            int blockCount = in.readInt();
+            if (upload != null) {
+                upload.copy(firstBlock, blockCount);
+            }
+            break;
+        }
+        case SyncProtocol.END: {
+            Upload upload = uploads.remove(in.readInt());
+            long lastModified = in.readLong();
+            if (upload == null) {
+                throw new RequestFailedException("No such upload");
+            }
+            upload.end(lastModified);
+            break;
+        }
+        case SyncProtocol.DELETE: {
+            Path file = resolve(in.readUTF());
+            try {
+                Files.deleteIfExists(file);
+            } catch (DirectoryNotEmptyException ex) {
+                // other sources are synced into it as well
+            } catch (IOException ex) {
+                throw new RequestFailedException("Failed to delete " + file + ": " + ex);
+            }
+            break;
+        }
+        case SyncProtocol.MKDIRS: {
+            Path directory = resolve(in.readUTF());
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException ex) {
+                throw new RequestFailedException("Failed to create " + directory + ": " + ex);
+            }
+            break;
+        }
+        case SyncProtocol.NOOP:
+            break;
+        default:
+            throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * @throws RequestFailedException if the path is outside of the webapps directory
+     */
+    private Path resolve(String path) throws RequestFailedException {
+        Path resolved = root.resolve(path).normalize();
+        if (!resolved.startsWith(root)) {
+            throw new RequestFailedException("Not within " + root + ": " + path);
+        }
+        return resolved;
+    }
+
+    private void list(Path directory, DataOutputStream result) throws RequestFailedException {
+        try {
+            Map<String, SyncTarget.FileState> files = SyncTarget.listLocal(directory);
+            result.writeInt(files.size());
+            for (Map.Entry<String, SyncTarget.FileState> file : files.entrySet()) {
+                result.writeUTF(file.getKey());
+                result.writeBoolean(file.getValue().isDirectory());
+                result.writeLong(file.getValue().getSize());
+                result.writeLong(file.getValue().getLastModified());
+            }
+        } catch (IOException ex) {
+            throw new RequestFailedException("Failed to list " + directory + ": " + ex);
+        }
+    }
+
+    private void signature(Path file, int blockSize, DataOutputStream result) throws RequestFailedException {
+        if (!Files.isRegularFile(file)) {
+            writeSignature(new BlockSignature(blockSize, new int[0], new byte[0][]), result);
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            writeSignature(BlockSignature.compute(new BufferedInputStream(in, 64 * 1024), blockSize), result);
+        } catch (IOException ex) {
+            throw new RequestFailedException("Failed to compute signature of " + file + ": " + ex);
+        }
+    }
+
+    private void writeSignature(BlockSignature signature, DataOutputStream result) throws RequestFailedException {
+        try {
+            result.writeInt(signature.getBlockCount());
+            for (int i = 0; i < signature.getBlockCount(); i++) {
+                result.writeInt(signature.getWeakChecksum(i));
+                result.write(signature.getStrongChecksum(i));
+            }
+        } catch (IOException ex) {
+            throw new RequestFailedException(ex.toString());
+        }
+    }
+
+    /**
+     * A new version of a file being put together next to it - from data and from blocks of the current version
+     */
+    private static class Upload {
+        private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+        private final int blockSize;
+        private Path target;
+        private Path temp;
+        private OutputStream out;
+        private FileChannel current;
+        // the first failure; the rest of the upload is skipped, and the failure is reported at the end
+        private String error;
+
+        Upload(int blockSize) {
+            this.blockSize = Math.max(1, blockSize);
+        }
+
+        void begin(Path target) {
+            this.target = target;
+            try {
+                Files.createDirectories(target.getParent());
+                temp = Files.createTempFile(target.getParent(), ".aardwark-", ".tmp");
+                out = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024);
+                if (Files.isRegularFile(target)) {
+                    current = FileChannel.open(target, StandardOpenOption.READ);
+                }
+            } catch (IOException ex) {
+                failed("Failed to start writing " + target + ": " + ex);
+            }
+        }
+
+        void write(byte[] data) {
+            if (error != null) {
+                return;
+            }
+            try {
+                out.write(data);
+            } catch (IOException ex) {
+                failed("Failed to write " + target + ": " + ex);
+            }
+        }
+
+        void copy(int firstBlock, int blockCount) {
+            if (error != null) {
+                return;
+            }
+            if (current == null) {
+                failed("No current version of " + target + " to copy blocks from");
+                return;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(blockSize * Math.min(blockCount, Math.max(1, COPY_BUFFER_SIZE / blockSize)));
+                long position = (long) firstBlock * blockSize;
+                long end = position + (long) blockCount * blockSize;
+                while (position < end) {
+                    ((Buffer) buffer).clear();
+                    ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - position));
+                    while (buffer.hasRemaining()) {
+                        if (current.read(buffer, position + buffer.position()) == -1) {
+                            throw new EOFException("Block " + (position / blockSize) + " not found");
+                        }
+                    }
+                    out.write(buffer.array(), 0, buffer.limit());
+                    position += buffer.limit();
+                }
+            } catch (IOException ex) {
+                failed("Failed to copy blocks of " + target + ": " + ex);
+            }
+        }
+
+        void end(long lastModified) throws RequestFailedException {
+            if (error != null) {
+                abort();
+                throw new RequestFailedException(error);
+            }
+            try {
+                out.close();
+                closeCurrent();
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(lastModified));
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException ex) {
+                abort();
+                throw new RequestFailedException("Failed to replace " + target + ": " + ex);
+            }
+        }
+
+        private void failed(String message) {
+            error = message;
+            abort();
+        }
+
+        void abort() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                closeCurrent();
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to clean up upload of " + target, ex);
+            }
+        }
+
+        private void closeCurrent() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * A request that could not be applied - reported to the sender, while the connection goes on
+     */
+    private static class RequestFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestFailedException(String message) {
+            super(message);
+        }
+    }
+}
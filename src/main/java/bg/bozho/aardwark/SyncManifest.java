@@ -0,0 +1,130 @@
+package bg.bozho.aardwark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state (size, last modification time and optionally a content hash) of each file at the time it was
+ * last synced. Persisted between restarts, so that on startup only the files that changed in the meantime
+ * have to be copied.
+ */
+public class SyncManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncManifest.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String NO_HASH = "-";
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the manifest from the given file. A missing or unreadable file results in an empty manifest,
+     * which means everything gets synced.
+     */
+    public static SyncManifest load(Path file) {
+        SyncManifest manifest = new SyncManifest();
+        if (Files.notExists(file)) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length < 4) {
+                    continue;
+                }
+                String hash = NO_HASH.equals(parts[2]) ? null : parts[2];
+                manifest.entries.put(parts[3], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), hash));
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Cannot read sync manifest " + file + ". All files will be synced", ex);
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    public void save(Path file) throws IOException {
+        // write to a temp file first, so that a crash doesn't leave a truncated manifest behind
+        Path tempFile = file.resolveSibling(file.getFileName() + ".new");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, UTF8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(value.getSize() + "\t" + value.getLastModified() + "\t"
+                        + (value.getHash() == null ? NO_HASH : value.getHash()) + "\t" + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public Entry get(Path source) {
+        return entries.get(source.toString());
+    }
+
+    public void put(Path source, Entry entry) {
+        entries.put(source.toString(), entry);
+    }
+
+    public void remove(Path source) {
+        entries.remove(source.toString());
+    }
+
+    /**
+     * @return the paths of all recorded files under the given directory
+     */
+    public List<String> getPathsUnder(Path root) {
+        String prefix = root.toString();
+        List<String> result = new ArrayList<>();
+        for (String path : entries.keySet()) {
+            if (path.startsWith(prefix) && path.length() > prefix.length()
+                    && path.startsWith(root.getFileSystem().getSeparator(), prefix.length())) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package bg.bozho.aardwark;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of everything that happens while syncing a project - from the events taken from the watch service
+ * to the files put in the webapp. Updated from the watch, dispatch and copy threads without locking, and
+ * read by the status servlet and through JMX.
+ */
+public class SyncMetrics implements SyncMetricsMXBean {
+
+    /**
+     * The readiness of a project - it is set up in the background, after the webapp has been deployed
+     */
+    public enum State {
+        INITIALIZING, READY, FAILED
+    }
+
+    private final String webappName;
+    private volatile ProjectDispatcher dispatcher;
+    private volatile State state = State.INITIALIZING;
+    private volatile String initializationError;
+    // released once the project is either ready or has failed
+    private final CountDownLatch settled = new CountDownLatch(1);
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong copyFailures = new AtomicLong();
+    private final AtomicLong watches = new AtomicLong();
+    private final AtomicLong reconciliations = new AtomicLong();
+    private final AtomicLong reconciliationMillis = new AtomicLong();
+    private final AtomicLong lastReconciliationMillis = new AtomicLong();
+    // from the event being taken from the watch service, until the change is in the webapp
+    private final LatencyHistogram copyLatency = new LatencyHistogram();
+    // the same, for each lane. Populated upfront, so never modified afterwards
+    private final Map<FileChange.Lane, LatencyHistogram> laneLatency = new EnumMap<>(FileChange.Lane.class);
+    // guarded by itself
+    private final Map<String, Long> startupPhases = new LinkedHashMap<>();
+
+    public SyncMetrics(String webappName) {
+        this.webappName = webappName;
+        for (FileChange.Lane lane : FileChange.Lane.values()) {
+            laneLatency.put(lane, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * The coalescer and the copy workers of the project keep their own counters
+     */
+    public void setDispatcher(ProjectDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public void setState(State state, String initializationError) {
+        this.initializationError = initializationError;
+        this.state = state;
+        if (state != State.INITIALIZING) {
+            settled.countDown();
+        }
+    }
+
+    /**
+     * Waits for the project to get ready (or to fail), up to the given time
+     * @return the state of the project after waiting
+     */
+    public State awaitSettled(long timeoutMillis) throws InterruptedException {
+        settled.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return state;
+    }
+
+    public void eventReceived() {
+        eventsReceived.incrementAndGet();
+    }
+
+    public void overflow() {
+        overflows.incrementAndGet();
+    }
+
+    public void watchAdded() {
+        watches.incrementAndGet();
+    }
+
+    public void watchRemoved() {
+        watches.decrementAndGet();
+    }
+
+    public void changeApplied(FileChange change, long bytes) {
+        if (change.getKind() == FileChange.Kind.DELETE) {
+            filesDeleted.incrementAndGet();
+        } else {
+            filesCopied.incrementAndGet();
+            bytesCopied.addAndGet(bytes);
+        }
+        long latency = (System.nanoTime() - change.getDetectedNanos()) / 1000000;
+        copyLatency.record(latency);
+        laneLatency.get(change.getLane()).record(latency);
+    }
+
+    public void changeFailed() {
+        copyFailures.incrementAndGet();
+    }
+
+    /**
+     * Files have been synced in bulk (on startup, or by a reconciliation). They count towards the totals, but not
+     * towards the latencies, as there are no detected changes they correspond to
+     */
+    public void synced(DirectorySync.Result result) {
+        filesCopied.addAndGet(result.getCopied());
+        bytesCopied.addAndGet(result.getBytes());
+        filesDeleted.addAndGet(result.getDeleted());
+    }
+
+    /**
+     * A synced directory has been compared with the webapp and the differences applied
+     */
+    public void reconciled(DirectorySync.Result result) {
+        synced(result);
+        reconciliations.incrementAndGet();
+        reconciliationMillis.addAndGet(result.getDurationMillis());
+        lastReconciliationMillis.set(result.getDurationMillis());
+    }
+
+    public void phaseCompleted(String phase, long millis) {
+        synchronized (startupPhases) {
+            Long previous = startupPhases.get(phase);
+            startupPhases.put(phase, previous != null ? previous + millis : millis);
+        }
+    }
+
+    @Override
+    public String getWebappName() {
+        return webappName;
+    }
+
+    @Override
+    public String getState() {
+        return state.name();
+    }
+
+    @Override
+    public String getInitializationError() {
+        return initializationError;
+    }
+
+    @Override
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    @Override
+    public long getEventsMerged() {
+        ProjectDispatcher dispatcher = this.dispatcher;
+        return dispatcher != null ? dispatcher.getCoalescer().getMergedCount() : 0;
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    @Override
+    public long getFilesCopied() {
+        return filesCopied.get();
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    @Override
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    @Override
+    public long getCopyFailures() {
+        return copyFailures.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        ProjectDispatcher dispatcher = this.dispatcher;
+        return dispatcher != null ? dispatcher.getCopyWorkers().getQueueDepth() + dispatcher.getStaticWorkers().getQueueDepth() : 0;
+    }
+
+    @Override
+    public int getPendingChanges() {
+        ProjectDispatcher dispatcher = this.dispatcher;
+        return dispatcher != null ? dispatcher.getCoalescer().getPendingCount() : 0;
+    }
+
+    @Override
+    public long getRebuildCount() {
+        ProjectDispatcher dispatcher = this.dispatcher;
+        return dispatcher != null ? dispatcher.getRebuildDetector().getRebuildCount() : 0;
+    }
+
+    @Override
+    public boolean isRebuilding() {
+        ProjectDispatcher dispatcher = this.dispatcher;
+        return dispatcher != null && dispatcher.getRebuildDetector().isRebuilding();
+    }
+
+    @Override
+    public long getWatchCount() {
+        return watches.get();
+    }
+
+    @Override
+    public long getReconciliationCount() {
+        return reconciliations.get();
+    }
+
+    @Override
+    public long getReconciliationMillis() {
+        return reconciliationMillis.get();
+    }
+
+    @Override
+    public long getLastReconciliationMillis() {
+        return lastReconciliationMillis.get();
+    }
+
+    @Override
+    public double getCopyLatencyMeanMillis() {
+        return copyLatency.getMean();
+    }
+
+    @Override
+    public long getCopyLatency50thPercentileMillis() {
+        return copyLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getCopyLatency99thPercentileMillis() {
+        return copyLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getCopyLatencyMaxMillis() {
+        return copyLatency.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getLaneLatency50thPercentileMillis() {
+        return getLanePercentile(50);
+    }
+
+    @Override
+    public Map<String, Long> getLaneLatency99thPercentileMillis() {
+        return getLanePercentile(99);
+    }
+
+    private Map<String, Long> getLanePercentile(double percentile) {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (Map.Entry<FileChange.Lane, LatencyHistogram> lane : laneLatency.entrySet()) {
+            percentiles.put(getLaneName(lane.getKey()), lane.getValue().getPercentile(percentile));
+        }
+        return percentiles;
+    }
+
+    private static String getLaneName(FileChange.Lane lane) {
+        return lane.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public Map<String, Long> getStartupPhaseMillis() {
+        synchronized (startupPhases) {
+            return new LinkedHashMap<>(startupPhases);
+        }
+    }
+
+    public LatencyHistogram getCopyLatency() {
+        return copyLatency;
+    }
+
+    public LatencyHistogram getLaneLatency(FileChange.Lane lane) {
+        return laneLatency.get(lane);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"webappName\":").append(quote(webappName));
+        json.append(",\"state\":").append(quote(getState()));
+        String initializationError = this.initializationError;
+        if (initializationError != null) {
+            json.append(",\"initializationError\":").append(quote(initializationError));
+        }
+        json.append(",\"eventsReceived\":").append(getEventsReceived());
+        json.append(",\"eventsMerged\":").append(getEventsMerged());
+        json.append(",\"overflowCount\":").append(getOverflowCount());
+        json.append(",\"pendingChanges\":").append(getPendingChanges());
+        json.append(",\"queueDepth\":").append(getQueueDepth());
+        json.append(",\"filesCopied\":").append(getFilesCopied());
+        json.append(",\"bytesCopied\":").append(getBytesCopied());
+        json.append(",\"filesDeleted\":").append(getFilesDeleted());
+        json.append(",\"copyFailures\":").append(getCopyFailures());
+        json.append(",\"watchCount\":").append(getWatchCount());
+        json.append(",\"rebuildCount\":").append(getRebuildCount());
+        json.append(",\"rebuilding\":").append(isRebuilding());
+        json.append(",\"reconciliationCount\":").append(getReconciliationCount());
+        json.append(",\"reconciliationMillis\":").append(getReconciliationMillis());
+        json.append(",\"lastReconciliationMillis\":").append(getLastReconciliationMillis());
+        json.append(",\"copyLatencyMillis\":");
+        appendHistogram(json, copyLatency);
+        json.append(",\"laneLatencyMillis\":{");
+        boolean first = true;
+        for (Map.Entry<FileChange.Lane, LatencyHistogram> lane : laneLatency.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            json.append(quote(getLaneName(lane.getKey()))).append(':');
+            appendHistogram(json, lane.getValue());
+            first = false;
+        }
+        json.append("},\"startupPhaseMillis\":{");
+        first = true;
+        for (Map.Entry<String, Long> phase : getStartupPhaseMillis().entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            json.append(quote(phase.getKey())).append(':').append(phase.getValue());
+            first = false;
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\":").append(histogram.getCount());
+        json.append(",\"mean\":").append(Math.round(histogram.getMean() * 10) / 10.0);
+        json.append(",\"p50\":").append(histogram.getPercentile(50));
+        json.append(",\"p90\":").append(histogram.getPercentile(90));
+        json.append(",\"p99\":").append(histogram.getPercentile(99));
+        json.append(",\"max\":").append(histogram.getMax()).append('}');
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
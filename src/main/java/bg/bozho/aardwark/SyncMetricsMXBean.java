@@ -0,0 +1,62 @@
+package bg.bozho.aardwark;
+
+import java.util.Map;
+
+/**
+ * The sync statistics of a project, as exposed through JMX
+ */
+public interface SyncMetricsMXBean {
+
+    String getWebappName();
+
+    String getState();
+
+    String getInitializationError();
+
+    long getEventsReceived();
+
+    long getEventsMerged();
+
+    long getOverflowCount();
+
+    long getFilesCopied();
+
+    long getBytesCopied();
+
+    long getFilesDeleted();
+
+    long getCopyFailures();
+
+    int getQueueDepth();
+
+    int getPendingChanges();
+
+    long getWatchCount();
+
+    long getRebuildCount();
+
+    boolean isRebuilding();
+
+    long getReconciliationCount();
+
+    /**
+     * The total time spent on reconciliations
+     */
+    long getReconciliationMillis();
+
+    long getLastReconciliationMillis();
+
+    double getCopyLatencyMeanMillis();
+
+    long getCopyLatency50thPercentileMillis();
+
+    long getCopyLatency99thPercentileMillis();
+
+    long getCopyLatencyMaxMillis();
+
+    Map<String, Long> getLaneLatency50thPercentileMillis();
+
+    Map<String, Long> getLaneLatency99thPercentileMillis();
+
+    Map<String, Long> getStartupPhaseMillis();
+}
@@ -0,0 +1,48 @@
+package bg.bozho.aardwark;
+
+/**
+ * The messages exchanged between a {@link RemoteSyncTarget} and a {@link SyncAgent}. Each request is an
+ * operation code followed by its arguments; the agent answers every request, in order, with a status
+ * (followed by the result, or by an error message). Requests are sent without waiting for the answers
+ * to the previous ones. Paths are relative to the webapps directory and use / as separator.
+ * <ul>
+ * <li>HELLO version, token</li>
+ * <li>LIST path - count, then name, directory, size, last modified for each entry</li>
+ * <li>SIGNATURE path, block size - count, then the weak and the strong checksum of each block</li>
+ * <li>BEGIN upload id, path, block size - starts writing a new version of the file</li>
+ * <li>DATA upload id, length, bytes</li>
+ * <li>COPY upload id, first block, block count - blocks of the current version of the file</li>
+ * <li>END upload id, last modified - replaces the file with the new version; fails if any part of the upload has failed</li>
+ * <li>DELETE path</li>
+ * <li>MKDIRS path</li>
+ * <li>NOOP - answered once everything before it has been applied</li>
+ * </ul>
+ */
+final class SyncProtocol {
+
+    static final int VERSION = 1;
+    static final int DEFAULT_PORT = 8765;
+
+    static final byte HELLO = 1;
+    static final byte LIST = 2;
+    static final byte SIGNATURE = 3;
+    static final byte BEGIN = 4;
+    static final byte DATA = 5;
+    static final byte COPY = 6;
+    static final byte END = 7;
+    static final byte DELETE = 8;
+    static final byte MKDIRS = 9;
+    static final byte NOOP = 10;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int STRONG_CHECKSUM_LENGTH = 16;
+    /**
+     * The largest chunk a DATA message may carry; longer ones are a protocol error
+     */
+    static final int MAX_DATA_LENGTH = 64 * 1024;
+
+    private SyncProtocol() {
+    }
+}
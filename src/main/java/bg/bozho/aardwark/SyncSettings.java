@@ -0,0 +1,100 @@
+package bg.bozho.aardwark;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tuning options of aardWARk. They can be set as key=value lines in aardwark.properties (next to the
+ * project paths), or as system properties prefixed with "aardwark." (e.g. -Daardwark.coalesce.quietMillis=500),
+ * the latter taking precedence.
+ */
+public class SyncSettings {
+
+    public static final String SYSTEM_PROPERTY_PREFIX = "aardwark.";
+
+    public static final String COALESCE_QUIET_MILLIS = "coalesce.quietMillis";
+    public static final String COALESCE_MAX_DELAY_MILLIS = "coalesce.maxDelayMillis";
+    public static final String COPY_WORKERS = "copy.workers";
+    public static final String COPY_QUEUE_CAPACITY = "copy.queueCapacity";
+    public static final String COPY_STATIC_WORKERS = "copy.staticWorkers";
+    public static final String SYNC_PARALLELISM = "sync.parallelism";
+    public static final String SYNC_HASH_CONTENTS = "sync.hashContents";
+    public static final String TRANSFER_MODE = "transfer.mode";
+    public static final String TRANSFER_LARGE_FILE_THRESHOLD = "transfer.largeFileThreshold";
+    public static final String TRANSFER_CHUNK_SIZE = "transfer.chunkSize";
+    public static final String TRANSFER_BANDWIDTH_LIMIT = "transfer.bandwidthLimit";
+    public static final String DEPENDENCIES_LOCAL_REPOSITORY = "dependencies.localRepository";
+    public static final String WATCH_INCLUDES = "watch.includes";
+    public static final String WATCH_EXCLUDES = "watch.excludes";
+    public static final String WATCH_BACKEND = "watch.backend";
+    public static final String POLL_INTERVAL_MILLIS = "poll.intervalMillis";
+    public static final String POLL_MAX_INTERVAL_MILLIS = "poll.maxIntervalMillis";
+    public static final String POLL_PARALLELISM = "poll.parallelism";
+    public static final String PUBLISH_MODE = "publish.mode";
+    public static final String PUBLISH_TOUCH = "publish.touch";
+    public static final String PUBLISH_HOOK = "publish.hook";
+    public static final String REBUILD_DELETE_THRESHOLD = "rebuild.deleteThreshold";
+    public static final String REBUILD_DELETE_WINDOW_MILLIS = "rebuild.deleteWindowMillis";
+    public static final String REBUILD_QUIET_MILLIS = "rebuild.quietMillis";
+    public static final String REBUILD_MAX_WAIT_MILLIS = "rebuild.maxWaitMillis";
+    public static final String INIT_PARALLELISM = "init.parallelism";
+    public static final String INIT_AWAIT_MILLIS = "init.awaitMillis";
+    public static final String TARGET_REMOTE = "target.remote";
+    public static final String TARGET_TOKEN = "target.token";
+    public static final String TARGET_BLOCK_SIZE = "target.blockSize";
+    public static final String TARGET_DELTA_THRESHOLD = "target.deltaThreshold";
+
+    private final Properties properties = new Properties();
+
+    public SyncSettings() {
+    }
+
+    /**
+     * Collects the settings lines (those containing '=') from the given lines of a properties file
+     */
+    public SyncSettings(List<String> lines) {
+        for (String line : lines) {
+            if (isSettingLine(line)) {
+                int idx = line.indexOf('=');
+                set(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+            }
+        }
+    }
+
+    public static boolean isSettingLine(String line) {
+        return line.indexOf('=') > 0 && !line.trim().startsWith("#");
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("Invalid value for " + key + ": " + value, ex);
+        }
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
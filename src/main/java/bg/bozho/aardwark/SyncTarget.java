@@ -0,0 +1,158 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the synced files end up. Targets are always given as paths within the webapps directory of the
+ * local container, as determined on startup; a target that is not on the local file system maps them
+ * to its own location. Implementations must be usable from several threads at once.
+ */
+public abstract class SyncTarget {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncTarget.class);
+
+    public static final String LOCAL = "local";
+    public static final String REMOTE = "remote";
+
+    /**
+     * Puts the source file in place of the target, retaining its modification time
+     */
+    public abstract void transfer(Path source, Path target) throws IOException;
+
+    /**
+     * Deletes the file or the (by then empty) directory. Directories that still have contents are kept,
+     * as other sources are synced into them as well (e.g. the classes of workspace modules into WEB-INF/classes)
+     */
+    public abstract void delete(Path target) throws IOException;
+
+    public abstract void createDirectories(Path directory) throws IOException;
+
+    /**
+     * @return the files and directories within the directory, by name. Empty if it doesn't exist
+     */
+    public abstract Map<String, FileState> list(Path directory) throws IOException;
+
+    /**
+     * Waits until all operations issued so far have been applied
+     * @throws IOException if any of them has failed since the last flush
+     */
+    public void flush() throws IOException {
+        // applied right away
+    }
+
+    public void close() {
+        // nothing to release
+    }
+
+    public abstract String getName();
+
+    public static SyncTarget local(TransferStrategy transferStrategy) {
+        return new LocalSyncTarget(transferStrategy);
+    }
+
+    static Map<String, FileState> listLocal(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyMap();
+        }
+        Map<String, FileState> files = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.put(file.getFileName().toString(),
+                            new FileState(attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } catch (NoSuchFileException ex) {
+                    // deleted in the meantime
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Size and modification time of a file in the target, for determining whether it has to be synced
+     */
+    public static class FileState {
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        public FileState(boolean directory, long size, long lastModified) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return !directory && this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * The webapp is on the local file system - files are linked, cloned or copied by the transfer strategy
+     */
+    static class LocalSyncTarget extends SyncTarget {
+        private final TransferStrategy transferStrategy;
+
+        LocalSyncTarget(TransferStrategy transferStrategy) {
+            this.transferStrategy = transferStrategy;
+        }
+
+        @Override
+        public void transfer(Path source, Path target) throws IOException {
+            transferStrategy.transfer(source, target);
+        }
+
+        @Override
+        public void delete(Path target) throws IOException {
+            try {
+                Files.deleteIfExists(target);
+            } catch (DirectoryNotEmptyException ex) {
+                logger.debug("Not deleting " + target + ", as it is not empty");
+            }
+        }
+
+        @Override
+        public void createDirectories(Path directory) throws IOException {
+            Files.createDirectories(directory);
+        }
+
+        @Override
+        public Map<String, FileState> list(Path directory) throws IOException {
+            return listLocal(directory);
+        }
+
+        public TransferStrategy getTransferStrategy() {
+            return transferStrategy;
+        }
+
+        @Override
+        public String getName() {
+            return LOCAL + " (" + transferStrategy.getName() + ")";
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package bg.bozho.aardwark;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the rate at which bytes are written, across all threads sharing the throttle. Each caller reserves
+ * the time its chunk takes at the configured rate and waits for its turn, so large copies proceed
+ * in small steps and leave room for other disk I/O.
+ */
+public class Throttle {
+
+    private final long bytesPerSecond;
+    // guarded by this
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the maximum rate; 0 or less for no limit
+     */
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return a throttle that never waits
+     */
+    public static Throttle unlimited() {
+        return new Throttle(0);
+    }
+
+    /**
+     * Waits until the given number of bytes may be written
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (!isLimited()) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,239 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts a file from the project in its place in the webapp. Depending on what the file system supports,
+ * the target can be a hard link to the source or a copy-on-write clone, so that no bytes are copied at all.
+ * Otherwise the file is copied, using channel transfer for large files - in chunks, at a limited rate, if a
+ * {@link Throttle} is configured. The modification time of the
+ * source is always retained, as it is used to determine whether a file needs syncing.
+ */
+public abstract class TransferStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferStrategy.class);
+
+    public static final String AUTO = "auto";
+    public static final String LINK = "link";
+    public static final String REFLINK = "reflink";
+    public static final String COPY = "copy";
+
+    public static final long DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public abstract void transfer(Path source, Path target) throws IOException;
+
+    public abstract String getName();
+
+    /**
+     * @return a strategy that gives the target contents of its own, so that later changes of the source don't reach it
+     * (and vice versa) - this one, unless it links
+     */
+    public TransferStrategy toCopying() {
+        return this;
+    }
+
+    /**
+     * @return a strategy that always copies
+     */
+    public static TransferStrategy copying(long largeFileThreshold) {
+        return copying(largeFileThreshold, Throttle.unlimited(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @return a strategy that always copies, writing large files in chunks of the given size through the throttle
+     */
+    public static TransferStrategy copying(long largeFileThreshold, Throttle throttle, long chunkSize) {
+        return new CopyTransfer(largeFileThreshold, throttle, chunkSize);
+    }
+
+    /**
+     * Determines the most efficient strategy that works between the two directories, by trying it on a probe file
+     * @param mode one of auto, link, reflink or copy. Anything but auto forces the given strategy (as long as it works)
+     */
+    public static TransferStrategy detect(Path sourceDir, Path targetDir, String mode, long largeFileThreshold) {
+        return detect(sourceDir, targetDir, mode, largeFileThreshold, Throttle.unlimited(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param throttle limits the rate at which large files are copied. Links and clones don't write any data, so they are not limited
+     */
+    public static TransferStrategy detect(Path sourceDir, Path targetDir, String mode, long largeFileThreshold,
+            Throttle throttle, long chunkSize) {
+        TransferStrategy copy = new CopyTransfer(largeFileThreshold, throttle, chunkSize);
+        if (COPY.equals(mode)) {
+            return copy;
+        }
+        Path probeDir = null;
+        Path probe = null;
+        Path probeTarget = null;
+        try {
+            // in a directory of its own, so that nothing is left in e.g. the root of the local repository
+            probeDir = Files.createTempDirectory(sourceDir, ".aardwark-");
+            probe = Files.createTempFile(probeDir, ".aardwark-", ".probe");
+            probeTarget = targetDir.resolve(probe.getFileName().toString());
+            if (AUTO.equals(mode) || LINK.equals(mode)) {
+                try {
+                    Files.createLink(probeTarget, probe);
+                    return new LinkTransfer(copy);
+                } catch (IOException | UnsupportedOperationException ex) {
+                    logger.debug("Hard links between " + sourceDir + " and " + targetDir + " not supported", ex);
+                }
+            }
+            if (AUTO.equals(mode) || REFLINK.equals(mode)) {
+                ReflinkTransfer reflink = new ReflinkTransfer(copy, largeFileThreshold);
+                if (reflink.cloneFile(probe, probeTarget)) {
+                    return reflink;
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Cannot determine the capabilities of the file system", ex);
+        } finally {
+            deleteQuietly(probe);
+            deleteQuietly(probeTarget);
+            deleteQuietly(probeDir);
+        }
+        return copy;
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                // ignore - it's just a probe
+            }
+        }
+    }
+
+    /**
+     * Regular copy. Large files are transferred between channels, so that they don't pass through a user-space buffer,
+     * one chunk at a time, so that the throttle can pace them
+     */
+    static class CopyTransfer extends TransferStrategy {
+        private final long largeFileThreshold;
+        private final Throttle throttle;
+        private final long chunkSize;
+
+        CopyTransfer(long largeFileThreshold, Throttle throttle, long chunkSize) {
+            this.largeFileThreshold = largeFileThreshold;
+            this.throttle = throttle;
+            this.chunkSize = Math.max(1, chunkSize);
+        }
+
+        @Override
+        public void transfer(Path source, Path target) throws IOException {
+            if (Files.size(source) < largeFileThreshold) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                return;
+            }
+            // replace rather than overwrite, as the container may have the old file open (e.g. a jar)
+            Files.deleteIfExists(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long chunk = Math.min(chunkSize, size - position);
+                    throttle.acquire(chunk);
+                    position += in.transferTo(position, chunk, out);
+                }
+            }
+            Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        }
+
+        @Override
+        public String getName() {
+            return COPY;
+        }
+    }
+
+    /**
+     * The target becomes another name for the source file, so there is nothing to copy. Falls back
+     * to copying if a link cannot be created for a particular file.
+     */
+    static class LinkTransfer extends TransferStrategy {
+        private final TransferStrategy fallback;
+
+        LinkTransfer(TransferStrategy fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void transfer(Path source, Path target) throws IOException {
+            if (Files.exists(target)) {
+                if (Files.isSameFile(source, target)) {
+                    return; // already linked; in-place modifications are visible through the link
+                }
+                Files.delete(target);
+            }
+            try {
+                Files.createLink(target, source);
+            } catch (IOException | UnsupportedOperationException ex) {
+                fallback.transfer(source, target);
+            }
+        }
+
+        @Override
+        public TransferStrategy toCopying() {
+            return fallback;
+        }
+
+        @Override
+        public String getName() {
+            return LINK;
+        }
+    }
+
+    /**
+     * Copy-on-write clone of the file, on file systems that support it (btrfs, xfs, apfs...). As there
+     * is no Java API for that, cp is used, which is worth it only for large files.
+     */
+    static class ReflinkTransfer extends TransferStrategy {
+        private final TransferStrategy fallback;
+        private final long largeFileThreshold;
+
+        ReflinkTransfer(TransferStrategy fallback, long largeFileThreshold) {
+            this.fallback = fallback;
+            this.largeFileThreshold = largeFileThreshold;
+        }
+
+        @Override
+        public void transfer(Path source, Path target) throws IOException {
+            if (Files.size(source) < largeFileThreshold) {
+                fallback.transfer(source, target);
+                return;
+            }
+            Files.deleteIfExists(target);
+            if (!cloneFile(source, target)) {
+                fallback.transfer(source, target);
+            }
+        }
+
+        boolean cloneFile(Path source, Path target) {
+            try {
+                Process process = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps",
+                        source.toString(), target.toString()).redirectErrorStream(true).start();
+                process.getInputStream().close();
+                return process.waitFor() == 0;
+            } catch (IOException ex) {
+                return false; // no cp, e.g. on Windows
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return REFLINK;
+        }
+    }
+}
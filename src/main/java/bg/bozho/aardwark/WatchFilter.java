@@ -0,0 +1,66 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which directories get a watch, based on glob patterns matched against the path of the directory
+ * relative to the project (e.g. <code>src/main/webapp/node_modules</code>). Excluded directories are skipped
+ * together with everything below them. If there are include patterns, only matching directories are watched,
+ * but their subdirectories are still visited. Hidden directories (.svn, .git, .settings...) are never watched.
+ */
+public class WatchFilter {
+
+    public static final String DEFAULT_EXCLUDES = "**/node_modules,**/bower_components";
+
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+
+    public WatchFilter(FileSystem fs, String includes, String excludes) {
+        this.includes = toMatchers(fs, includes);
+        this.excludes = toMatchers(fs, excludes);
+    }
+
+    private static List<PathMatcher> toMatchers(FileSystem fs, String patterns) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns.split(",")) {
+                if (!pattern.trim().isEmpty()) {
+                    matchers.add(fs.getPathMatcher("glob:" + pattern.trim()));
+                }
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * @return true if the directory and everything below it should be skipped
+     */
+    public boolean isExcluded(Path projectPath, Path dir) {
+        if (isHidden(dir)) {
+            return true;
+        }
+        return matchesAny(excludes, projectPath.relativize(dir));
+    }
+
+    public boolean isIncluded(Path projectPath, Path dir) {
+        return includes.isEmpty() || matchesAny(includes, projectPath.relativize(dir));
+    }
+
+    public static boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    private boolean matchesAny(List<PathMatcher> matchers, Path relativePath) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
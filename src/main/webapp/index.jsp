@@ -1 +1,3 @@
-For setup instructions go to <a href="https://github.com/Glamdring/aardWARk">the project page at GitHub</a>
\ No newline at end of file
+For setup instructions go to <a href="https://github.com/Glamdring/aardWARk">the project page at GitHub</a>
+<br />
+Sync status: <a href="status">status</a>
@@ -0,0 +1,105 @@
+package bg.bozho.aardwark;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bg.bozho.aardwark.FileChange.Kind;
+
+public class BatchPublisherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void publishBatchTest() throws Exception {
+        Path classes = folder.newFolder("classes").toPath();
+        Path webapp = folder.newFolder("webapp").toPath();
+        write(classes.resolve("bg/Some.class"), "new");
+        write(classes.resolve("bg/sub/Other.class"), "other");
+        write(webapp.resolve("WEB-INF/classes/bg/Some.class"), "old");
+        write(webapp.resolve("WEB-INF/classes/bg/Removed.class"), "removed");
+        write(webapp.resolve("WEB-INF/web.xml"), "<web-app/>");
+        Files.setLastModifiedTime(webapp.resolve("WEB-INF/web.xml"), FileTime.fromMillis(1000));
+
+        SyncManifest manifest = new SyncManifest();
+        SyncMetrics metrics = new SyncMetrics("webapp");
+        BatchPublisher publisher = new BatchPublisher("webapp", webapp, TransferStrategy.copying(Long.MAX_VALUE), manifest,
+                metrics, "WEB-INF/web.xml", null);
+        try {
+            publisher.publish(Arrays.asList(
+                    change(Kind.MODIFY, classes, webapp, "bg/Some.class"),
+                    change(Kind.CREATE, classes, webapp, "bg/sub/Other.class"),
+                    change(Kind.DELETE, classes, webapp, "bg/Removed.class"),
+                    // deleted before the batch was published
+                    change(Kind.CREATE, classes, webapp, "bg/Gone.class")));
+        } finally {
+            publisher.shutdown();
+        }
+
+        Assert.assertEquals("new", read(webapp.resolve("WEB-INF/classes/bg/Some.class")));
+        Assert.assertEquals("other", read(webapp.resolve("WEB-INF/classes/bg/sub/Other.class")));
+        Assert.assertTrue(Files.notExists(webapp.resolve("WEB-INF/classes/bg/Removed.class")));
+        Assert.assertTrue(Files.notExists(webapp.resolve("WEB-INF/classes/bg/Gone.class")));
+        Assert.assertTrue(Files.notExists(webapp.resolve(BatchPublisher.STAGING_DIRECTORY)));
+        Assert.assertTrue(Files.getLastModifiedTime(webapp.resolve("WEB-INF/web.xml")).toMillis() > 1000);
+        Assert.assertNotNull(manifest.get(classes.resolve("bg/Some.class")));
+        Assert.assertEquals(2, metrics.getFilesCopied());
+        Assert.assertEquals(1, metrics.getFilesDeleted());
+    }
+
+    @Test
+    public void linkedFilesTest() throws Exception {
+        Path project = folder.newFolder("project").toPath();
+        Path classes = project.resolve("target/classes");
+        Path webapp = folder.newFolder("webapp").toPath();
+        write(classes.resolve("bg/Some.class"), "old");
+        write(project.resolve("src/main/webapp/WEB-INF/web.xml"), "<web-app/>");
+        Files.setLastModifiedTime(project.resolve("src/main/webapp/WEB-INF/web.xml"), FileTime.fromMillis(1000));
+        TransferStrategy linking = TransferStrategy.detect(classes, webapp, TransferStrategy.LINK, Long.MAX_VALUE);
+        Assume.assumeTrue(TransferStrategy.LINK.equals(linking.getName()));
+        // as synced on startup
+        Files.createDirectories(webapp.resolve("WEB-INF/classes/bg"));
+        linking.transfer(classes.resolve("bg/Some.class"), webapp.resolve("WEB-INF/classes/bg/Some.class"));
+        linking.transfer(project.resolve("src/main/webapp/WEB-INF/web.xml"), webapp.resolve("WEB-INF/web.xml"));
+
+        write(classes.resolve("bg/Some.class"), "new");
+        BatchPublisher publisher = new BatchPublisher("webapp", webapp, linking, new SyncManifest(), new SyncMetrics("webapp"),
+                "WEB-INF/web.xml", null);
+        try {
+            publisher.publish(Arrays.asList(change(Kind.MODIFY, classes, webapp, "bg/Some.class")));
+        } finally {
+            publisher.shutdown();
+        }
+
+        Path published = webapp.resolve("WEB-INF/classes/bg/Some.class");
+        Assert.assertEquals("new", read(published));
+        // a copy, which the next build won't write into
+        Assert.assertFalse(Files.isSameFile(classes.resolve("bg/Some.class"), published));
+        Assert.assertTrue(Files.notExists(webapp.resolve(BatchPublisher.STAGING_DIRECTORY)));
+        // only the webapp's web.xml is touched, not the one in the project
+        Assert.assertTrue(Files.getLastModifiedTime(webapp.resolve("WEB-INF/web.xml")).toMillis() > 1000);
+        Assert.assertEquals(1000, Files.getLastModifiedTime(project.resolve("src/main/webapp/WEB-INF/web.xml")).toMillis());
+    }
+
+    private FileChange change(Kind kind, Path classes, Path webapp, String path) {
+        return new FileChange(kind, classes.resolve(path), webapp.resolve("WEB-INF/classes").resolve(path), null);
+    }
+
+    private void write(Path file, String contents) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,105 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bg.bozho.aardwark.FileChange.Kind;
+
+public class CopyWorkerPoolTest {
+
+    private FileSystem fs = FileSystems.getDefault();
+
+    @Test
+    public void orderPerTargetTest() throws Exception {
+        final int targets = 8;
+        final int changesPerTarget = 50;
+        final Map<Path, List<Path>> applied = new HashMap<>();
+        final CountDownLatch done = new CountDownLatch(targets * changesPerTarget);
+        CopyWorkerPool pool = new CopyWorkerPool("test", 4, 1000, new CopyWorkerPool.ChangeWorker() {
+            @Override
+            public void apply(FileChange change) {
+                synchronized (applied) {
+                    if (!applied.containsKey(change.getTarget())) {
+                        applied.put(change.getTarget(), new ArrayList<Path>());
+                    }
+                    applied.get(change.getTarget()).add(change.getSource());
+                }
+                Thread.yield();
+                done.countDown();
+            }
+        });
+        try {
+            // the changes of the targets interleaved, as they arrive from the watch thread
+            for (int i = 0; i < changesPerTarget; i++) {
+                for (int target = 0; target < targets; target++) {
+                    Assert.assertTrue(pool.offer(change(target, i)));
+                }
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            Assert.assertEquals(targets, applied.size());
+            for (int target = 0; target < targets; target++) {
+                List<Path> expected = new ArrayList<>();
+                for (int i = 0; i < changesPerTarget; i++) {
+                    expected.add(change(target, i).getSource());
+                }
+                Assert.assertEquals(expected, applied.get(change(target, 0).getTarget()));
+            }
+            Assert.assertEquals(0, pool.getQueueDepth());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void queueDepthTest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        CopyWorkerPool pool = new CopyWorkerPool("test", 1, 2, new CopyWorkerPool.ChangeWorker() {
+            @Override
+            public void apply(FileChange change) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        try {
+            Assert.assertTrue(pool.offer(change(0, 0)));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            // the first change is being applied, so it is no longer queued
+            Assert.assertEquals(0, pool.getQueueDepth());
+            Assert.assertTrue(pool.offer(change(0, 1)));
+            Assert.assertTrue(pool.offer(change(1, 2)));
+            Assert.assertEquals(2, pool.getQueueDepth());
+            // the queue is full - the change has to be held back
+            Assert.assertFalse(pool.offer(change(2, 3)));
+            Assert.assertEquals(2, pool.getQueueDepth());
+
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, pool.getQueueDepth());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private FileChange change(int target, int sequence) {
+        return new FileChange(Kind.MODIFY, fs.getPath("/work/project/target/classes/" + target + "/" + sequence + ".class"),
+                fs.getPath("/server/webapps/app/WEB-INF/classes/" + target + ".class"), null);
+    }
+}
@@ -0,0 +1,67 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.DependencyManagement;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Plugin;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DependencyResolverTest {
+
+    private DependencyResolver resolver = new DependencyResolver(Paths.get("/nonexistent/repository"));
+
+    @Test
+    public void fingerprintTest() {
+        Model model = new Model();
+        model.addDependency(dependency("commons-io", "2.4", "compile"));
+        model.addDependency(dependency("junit", "4.11", "test"));
+        String fingerprint = resolver.fingerprint(model);
+
+        // unrelated changes
+        model.setBuild(new Build());
+        model.getBuild().addPlugin(new Plugin());
+        model.setDescription("changed");
+        Assert.assertEquals(fingerprint, resolver.fingerprint(model));
+
+        // the order of declaration decides conflicts, so it matters
+        Model reordered = new Model();
+        reordered.addDependency(dependency("junit", "4.11", "test"));
+        reordered.addDependency(dependency("commons-io", "2.4", "compile"));
+        Assert.assertNotEquals(fingerprint, resolver.fingerprint(reordered));
+
+        // unlike the order of managed dependencies
+        Model managed = new Model();
+        managed.setDependencyManagement(new DependencyManagement());
+        managed.getDependencyManagement().addDependency(dependency("commons-io", "2.4", "compile"));
+        managed.getDependencyManagement().addDependency(dependency("junit", "4.11", "test"));
+        Model managedReordered = new Model();
+        managedReordered.setDependencyManagement(new DependencyManagement());
+        managedReordered.getDependencyManagement().addDependency(dependency("junit", "4.11", "test"));
+        managedReordered.getDependencyManagement().addDependency(dependency("commons-io", "2.4", "compile"));
+        Assert.assertEquals(resolver.fingerprint(managed), resolver.fingerprint(managedReordered));
+
+        // the jars of workspace modules are left out
+        Assert.assertEquals(fingerprint, resolver.fingerprint(model, Collections.<String>emptySet()));
+        Assert.assertNotEquals(fingerprint, resolver.fingerprint(model, Collections.singleton("commons-io:commons-io")));
+
+        model.getDependencies().get(1).setScope("compile");
+        Assert.assertNotEquals(fingerprint, resolver.fingerprint(model));
+        model.getDependencies().get(1).setScope("test");
+        model.getDependencies().get(0).setVersion("2.5");
+        Assert.assertNotEquals(fingerprint, resolver.fingerprint(model));
+    }
+
+    private Dependency dependency(String artifactId, String version, String scope) {
+        Dependency dependency = new Dependency();
+        dependency.setGroupId(artifactId);
+        dependency.setArtifactId(artifactId);
+        dependency.setVersion(version);
+        dependency.setScope(scope);
+        return dependency;
+    }
+}
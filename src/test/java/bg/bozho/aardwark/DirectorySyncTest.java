@@ -0,0 +1,113 @@
+package bg.bozho.aardwark;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectorySyncTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DirectorySync directorySync = new DirectorySync(2, true);
+    private TransferStrategy transfer = TransferStrategy.copying(4);
+
+    @After
+    public void tearDown() {
+        directorySync.shutdown();
+    }
+
+    @Test
+    public void incrementalSyncTest() throws Exception {
+        Path source = folder.newFolder("classes").toPath();
+        Path target = folder.newFolder("webapp").toPath();
+        write(source.resolve("bg/bozho/Some.class"), "some");
+        write(source.resolve("bg/bozho/Other.class"), "other");
+        write(source.resolve("config.properties"), "foo=bar");
+        Path manifestFile = folder.getRoot().toPath().resolve("test.manifest");
+
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        DirectorySync.Result result = directorySync.sync(source, target, manifest, transfer);
+        manifest.save(manifestFile);
+        Assert.assertEquals(3, result.getCopied());
+        Assert.assertEquals("some", read(target.resolve("bg/bozho/Some.class")));
+
+        write(source.resolve("bg/bozho/Other.class"), "changed");
+        Files.delete(source.resolve("config.properties"));
+
+        manifest = SyncManifest.load(manifestFile);
+        result = directorySync.sync(source, target, manifest, transfer);
+        Assert.assertEquals(1, result.getCopied());
+        Assert.assertEquals(1, result.getSkipped());
+        Assert.assertEquals(1, result.getDeleted());
+        Assert.assertEquals("changed", read(target.resolve("bg/bozho/Other.class")));
+        Assert.assertTrue(Files.notExists(target.resolve("config.properties")));
+    }
+
+    @Test
+    public void unchangedContentsSkippedTest() throws Exception {
+        Path source = folder.newFolder("classes").toPath();
+        Path target = folder.newFolder("webapp").toPath();
+        Path file = source.resolve("Some.class");
+        write(file, "some");
+        SyncManifest manifest = new SyncManifest();
+        directorySync.sync(source, target, manifest, transfer);
+
+        // rebuilt with the same contents
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        DirectorySync.Result result = directorySync.sync(source, target, manifest, transfer);
+        Assert.assertEquals(0, result.getCopied());
+        Assert.assertEquals(1, result.getSkipped());
+    }
+
+    @Test
+    public void linkTransferTest() throws Exception {
+        Path source = folder.newFolder("classes").toPath();
+        Path target = folder.newFolder("webapp").toPath();
+        TransferStrategy strategy = TransferStrategy.detect(source, target, TransferStrategy.LINK, 4);
+        // the probe leaves nothing behind
+        Assert.assertEquals(0, source.toFile().list().length);
+        Assert.assertEquals(0, target.toFile().list().length);
+        Assume.assumeTrue(TransferStrategy.LINK.equals(strategy.getName()));
+
+        write(source.resolve("Some.class"), "some");
+        DirectorySync.Result result = directorySync.sync(source, target, new SyncManifest(), strategy);
+        Assert.assertEquals(1, result.getCopied());
+        Assert.assertTrue(Files.isSameFile(source.resolve("Some.class"), target.resolve("Some.class")));
+    }
+
+    @Test
+    public void throttledTransferTest() throws Exception {
+        Path source = folder.newFolder("static").toPath();
+        Path target = folder.newFolder("webapp").toPath();
+        byte[] contents = new byte[64 * 1024];
+        Arrays.fill(contents, (byte) 'x');
+        Files.write(source.resolve("bundle.js"), contents);
+
+        // 4 chunks of 16K at 128K/s - the first one goes right away
+        long start = System.nanoTime();
+        TransferStrategy.copying(4, new Throttle(128 * 1024), 16 * 1024).transfer(source.resolve("bundle.js"), target.resolve("bundle.js"));
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertArrayEquals(contents, Files.readAllBytes(target.resolve("bundle.js")));
+        Assert.assertTrue("Took " + millis + " ms", millis >= 350);
+    }
+
+    private void write(Path file, String contents) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, Arrays.asList(contents), Charset.forName("UTF-8"));
+    }
+
+    private String read(Path file) throws Exception {
+        return Files.readAllLines(file, Charset.forName("UTF-8")).get(0);
+    }
+}
@@ -0,0 +1,84 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bg.bozho.aardwark.FileChange.Kind;
+
+public class EventCoalescerTest {
+
+    private FileSystem fs = FileSystems.getDefault();
+
+    @Test
+    public void mergeEventsPerPathTest() {
+        final List<FileChange> handled = new ArrayList<>();
+        EventCoalescer coalescer = new EventCoalescer(1000, 1000, new EventCoalescer.ChangeHandler() {
+            @Override
+            public void handle(List<FileChange> changes) {
+                handled.addAll(changes);
+            }
+        });
+        coalescer.offer(change(Kind.CREATE, "Some.class"));
+        coalescer.offer(change(Kind.MODIFY, "Some.class"));
+        coalescer.offer(change(Kind.MODIFY, "Some.class"));
+        coalescer.offer(change(Kind.MODIFY, "Other.class"));
+        coalescer.offer(change(Kind.CREATE, "Temp.class"));
+        coalescer.offer(change(Kind.DELETE, "Temp.class"));
+
+        // still within the quiet window
+        coalescer.run();
+        Assert.assertTrue(handled.isEmpty());
+
+        coalescer.flush(true);
+        Assert.assertEquals(2, handled.size());
+        Assert.assertEquals(Kind.CREATE, handled.get(0).getKind());
+        Assert.assertEquals("Some.class", handled.get(0).getTarget().getFileName().toString());
+        Assert.assertEquals(Kind.MODIFY, handled.get(1).getKind());
+
+        Assert.assertEquals(6, coalescer.getReceivedCount());
+        Assert.assertEquals(4, coalescer.getMergedCount());
+        Assert.assertEquals(1, coalescer.getCancelledCount());
+        Assert.assertEquals(2, coalescer.getEmittedCount());
+    }
+
+    @Test
+    public void requeueTest() {
+        final List<FileChange> handled = new ArrayList<>();
+        EventCoalescer coalescer = new EventCoalescer(1000, 1000, new EventCoalescer.ChangeHandler() {
+            @Override
+            public void handle(List<FileChange> changes) {
+                handled.addAll(changes);
+            }
+        });
+        coalescer.offer(change(Kind.MODIFY, "Other.class"));
+        coalescer.requeue(Arrays.asList(change(Kind.CREATE, "Some.class"), change(Kind.DELETE, "Other.class")));
+        coalescer.offer(change(Kind.MODIFY, "Some.class"));
+
+        // requeued changes are handed over without waiting for the window
+        coalescer.run();
+        Assert.assertEquals(2, handled.size());
+        Assert.assertEquals(Kind.MODIFY, handled.get(0).getKind());
+        Assert.assertEquals(Kind.CREATE, handled.get(1).getKind());
+    }
+
+    @Test
+    public void mergeKindsTest() {
+        Assert.assertNull(EventCoalescer.merge(Kind.CREATE, Kind.DELETE));
+        Assert.assertEquals(Kind.DELETE, EventCoalescer.merge(Kind.MODIFY, Kind.DELETE));
+        Assert.assertEquals(Kind.MODIFY, EventCoalescer.merge(Kind.DELETE, Kind.CREATE));
+        Assert.assertEquals(Kind.CREATE, EventCoalescer.merge(Kind.CREATE, Kind.MODIFY));
+    }
+
+    private FileChange change(Kind kind, String name) {
+        Path source = fs.getPath("/workspace/foo/target/classes", name);
+        Path target = fs.getPath("/tomcat/webapps/foo/WEB-INF/classes", name);
+        return new FileChange(kind, source, target, null);
+    }
+}
@@ -0,0 +1,96 @@
+package bg.bozho.aardwark;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.model.Model;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MavenModelCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MavenModelCache cache = new MavenModelCache();
+
+    @Test
+    public void modelTest() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Assert.assertNull(cache.getModel(root));
+
+        writePom(root, "parent", "pom", "<modules><module>web</module></modules>");
+        Model model = cache.getModel(root);
+        Assert.assertEquals("parent", model.getArtifactId());
+        Assert.assertSame(model, cache.getModel(root.resolve("web/..")));
+        Assert.assertEquals(1, cache.getParseCount());
+
+        // a different size is noticed even if the modification time is the same
+        writePom(root, "parent", "pom", "<modules><module>web</module><module>core</module></modules>");
+        Assert.assertEquals(2, cache.getModel(root).getModules().size());
+        Assert.assertEquals(2, cache.getParseCount());
+
+        cache.invalidate(root.resolve("pom.xml"));
+        cache.getModel(root);
+        Assert.assertEquals(3, cache.getParseCount());
+    }
+
+    @Test
+    public void effectiveModelTest() throws Exception {
+        Path root = folder.getRoot().toPath();
+        writePom(root, "parent", "pom", "<properties><version.lib>1.0</version.lib></properties>");
+        Path web = Files.createDirectories(root.resolve("web"));
+        writePom(web, "web", "war", "<parent><groupId>test</groupId><artifactId>parent</artifactId><version>1</version></parent>"
+                + "<dependencies><dependency><groupId>test</groupId><artifactId>lib</artifactId>"
+                + "<version>${version.lib}</version></dependency></dependencies>");
+        DependencyResolver resolver = new DependencyResolver(folder.newFolder("repository").toPath());
+
+        Model model = cache.getEffectiveModel(web, resolver);
+        Assert.assertEquals("1.0", model.getDependencies().get(0).getVersion());
+        Assert.assertSame(model, cache.getEffectiveModel(web, resolver));
+        Assert.assertEquals(1, cache.getBuildCount());
+
+        // changes of the parent are inherited
+        writePom(root, "parent", "pom", "<properties><version.lib>1.1.0</version.lib></properties>");
+        Assert.assertEquals("1.1.0", cache.getEffectiveModel(web, resolver).getDependencies().get(0).getVersion());
+        Assert.assertEquals(2, cache.getBuildCount());
+
+        cache.invalidate(root.resolve("pom.xml"));
+        cache.getEffectiveModel(web, resolver);
+        Assert.assertEquals(3, cache.getBuildCount());
+    }
+
+    @Test
+    public void modulesTest() throws Exception {
+        Path root = folder.getRoot().toPath().toAbsolutePath().normalize();
+        writePom(root, "parent", "pom", "<modules><module>web</module><module>libs</module></modules>");
+        writePom(Files.createDirectories(root.resolve("web")), "web", "war", "");
+        writePom(Files.createDirectories(root.resolve("libs")), "libs", "pom", "<modules><module>core</module><module>api</module></modules>");
+        writePom(Files.createDirectories(root.resolve("libs/core")), "core", "jar", "");
+
+        Map<String, List<Path>> modules = cache.getModules(root);
+        Assert.assertEquals(Arrays.asList(root.resolve("libs/core")), modules.get("core"));
+        Assert.assertEquals(Arrays.asList(root.resolve("web")), modules.get("web"));
+        // only modules without modules of their own, and with a pom
+        Assert.assertEquals(2, modules.size());
+        long parseCount = cache.getParseCount();
+        Assert.assertSame(modules, cache.getModules(root));
+        Assert.assertEquals(parseCount, cache.getParseCount());
+
+        // a pom that appears is noticed
+        writePom(Files.createDirectories(root.resolve("libs/api")), "api", "jar", "");
+        Assert.assertEquals(Arrays.asList(root.resolve("libs/api")), cache.getModules(root).get("api"));
+    }
+
+    private static void writePom(Path dir, String artifactId, String packaging, String contents) throws Exception {
+        String pom = "<project><modelVersion>4.0.0</modelVersion><groupId>test</groupId><artifactId>" + artifactId
+                + "</artifactId><version>1</version><packaging>" + packaging + "</packaging>" + contents + "</project>";
+        Files.write(dir.resolve("pom.xml"), pom.getBytes(StandardCharsets.UTF_8));
+    }
+}
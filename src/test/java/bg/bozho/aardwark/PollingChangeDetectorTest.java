@@ -0,0 +1,101 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PollingChangeDetectorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PollingChangeDetector detector = new PollingChangeDetector(100, 1000, 2);
+
+    @After
+    public void tearDown() {
+        detector.close();
+    }
+
+    @Test
+    public void changesTest() throws Exception {
+        Path dir = folder.newFolder("classes").toPath();
+        Files.write(dir.resolve("A.class"), new byte[] { 1 });
+        Files.write(dir.resolve("B.class"), new byte[] { 1 });
+        WatchKey key = detector.register(dir);
+        Assert.assertSame(key, detector.register(dir));
+        Assert.assertEquals(0, detector.scan());
+
+        Files.write(dir.resolve("A.class"), new byte[] { 1, 2 });
+        Files.delete(dir.resolve("B.class"));
+        Files.write(dir.resolve("C.class"), new byte[] { 1 });
+        Assert.assertEquals(1, detector.scan());
+        Assert.assertSame(key, detector.take());
+        Set<String> events = toStrings(key.pollEvents());
+        Assert.assertEquals(3, events.size());
+        Assert.assertTrue(events.contains("ENTRY_MODIFY A.class"));
+        Assert.assertTrue(events.contains("ENTRY_DELETE B.class"));
+        Assert.assertTrue(events.contains("ENTRY_CREATE C.class"));
+        Assert.assertTrue(key.reset());
+        Assert.assertEquals(0, detector.scan());
+
+        // the directory hasn't changed - only the known files are checked
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        detector.scan();
+        Files.setLastModifiedTime(dir.resolve("A.class"), FileTime.fromMillis(System.currentTimeMillis() - 30000));
+        Assert.assertEquals(1, detector.scan());
+        Assert.assertEquals("[ENTRY_MODIFY A.class]", toStrings(detector.take().pollEvents()).toString());
+        key.reset();
+
+        // gone
+        Files.delete(dir.resolve("A.class"));
+        Files.delete(dir.resolve("C.class"));
+        Files.delete(dir);
+        Assert.assertEquals(1, detector.scan());
+        Assert.assertSame(key, detector.take());
+        Assert.assertFalse(key.reset());
+        Assert.assertEquals(0, detector.getDirectoryCount());
+    }
+
+    @Test
+    public void overflowTest() throws Exception {
+        Path dir = folder.newFolder("classes").toPath();
+        WatchKey key = detector.register(dir);
+        for (int i = 0; i < PollingChangeDetector.MAX_EVENTS + 1; i++) {
+            Files.write(dir.resolve("File" + i + ".class"), new byte[] { 1 });
+        }
+        detector.scan();
+        List<WatchEvent<?>> events = detector.take().pollEvents();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(StandardWatchEventKinds.OVERFLOW, events.get(0).kind());
+        Assert.assertTrue(key.reset());
+    }
+
+    @Test
+    public void adaptiveIntervalTest() throws Exception {
+        Assert.assertEquals(100, detector.nextInterval(800, 1, 10));
+        Assert.assertEquals(151, detector.nextInterval(100, 0, 10));
+        Assert.assertEquals(1000, detector.nextInterval(900, 0, 10));
+        // a slow scan must not take up all the time
+        Assert.assertEquals(600, detector.nextInterval(100, 1, 300));
+    }
+
+    private static Set<String> toStrings(List<WatchEvent<?>> events) {
+        Set<String> result = new HashSet<>();
+        for (WatchEvent<?> event : events) {
+            result.add(event.kind().name() + " " + event.context());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bg.bozho.aardwark.FileChange.Kind;
+import bg.bozho.aardwark.StartupListener.WatchableDirectory;
+
+public class RebuildDetectorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<FileChange> flushed = new ArrayList<>();
+    private List<WatchableDirectory> rebuilt = new ArrayList<>();
+
+    private EventCoalescer coalescer = new EventCoalescer(0, 0, new EventCoalescer.ChangeHandler() {
+        @Override
+        public void handle(List<FileChange> changes) {
+            flushed.addAll(changes);
+        }
+    });
+
+    @Test
+    public void rootDeletedTest() throws Exception {
+        Path project = folder.newFolder("project").toPath();
+        Path classes = project.resolve("target/classes");
+        RebuildDetector detector = detector(0, 50);
+        WatchableDirectory directory = new WatchableDirectory(classes, project, false, null, "app");
+
+        Assert.assertTrue(detector.eventReceived(directory, true, Collections.<Path>emptyList()));
+        coalescer.offer(new FileChange(Kind.DELETE, classes.resolve("Some.class"), folder.getRoot().toPath().resolve("Some.class"), directory));
+
+        // mvn clean
+        Assert.assertFalse(detector.eventReceived(directory, true, Collections.singletonList(classes)));
+        Assert.assertTrue(detector.isRebuilding());
+        Assert.assertEquals(1, detector.getRebuildCount());
+        coalescer.flush(true);
+        Assert.assertTrue("Pending changes of the project should be dropped", flushed.isEmpty());
+
+        // quiet, but the build hasn't produced the classes yet
+        Thread.sleep(100);
+        detector.run();
+        Assert.assertTrue(detector.isRebuilding());
+
+        Files.createDirectories(classes);
+        Assert.assertFalse(detector.eventReceived(directory, false, Collections.<Path>emptyList()));
+        detector.run();
+        Assert.assertTrue("Should wait for the quiet period", rebuilt.isEmpty());
+
+        Thread.sleep(100);
+        detector.run();
+        Assert.assertFalse(detector.isRebuilding());
+        Assert.assertEquals(1, rebuilt.size());
+        Assert.assertEquals(project, rebuilt.get(0).getProjectPath());
+        Assert.assertTrue(detector.eventReceived(directory, false, Collections.<Path>emptyList()));
+    }
+
+    @Test
+    public void deleteThresholdTest() throws Exception {
+        Path project = folder.newFolder("project").toPath();
+        RebuildDetector detector = detector(3, 0);
+        WatchableDirectory directory = new WatchableDirectory(project.resolve("src/main/webapp"), project, false, null, "app");
+
+        Assert.assertTrue(detector.eventReceived(directory, false, Collections.<Path>emptyList()));
+        Assert.assertTrue(detector.eventReceived(directory, true, Collections.<Path>emptyList()));
+        Assert.assertTrue(detector.eventReceived(directory, true, Collections.<Path>emptyList()));
+        Assert.assertFalse(detector.eventReceived(directory, true, Collections.<Path>emptyList()));
+
+        detector.run();
+        Assert.assertFalse(detector.isRebuilding());
+        Assert.assertEquals(1, rebuilt.size());
+    }
+
+    private RebuildDetector detector(int deleteThreshold, long quietMillis) {
+        return new RebuildDetector("app", deleteThreshold, 10000, quietMillis, 60000, coalescer, new RebuildDetector.RebuildHandler() {
+            @Override
+            public void rebuildFinished(Collection<WatchableDirectory> projects) {
+                rebuilt.addAll(projects);
+            }
+        });
+    }
+}
@@ -0,0 +1,156 @@
+package bg.bozho.aardwark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReconcilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DirectorySync directorySync = new DirectorySync(2, false);
+    private Reconciler reconciler = new Reconciler(directorySync);
+    private SyncTarget local = SyncTarget.local(TransferStrategy.copying(1));
+
+    @After
+    public void tearDown() {
+        reconciler.shutdown();
+        directorySync.shutdown();
+    }
+
+    @Test
+    public void reconcileTest() throws Exception {
+        Path source = folder.newFolder("classes").toPath();
+        Path target = folder.newFolder("webapp").toPath();
+        write(source.resolve("a/Some.class"), "some");
+        write(source.resolve("Other.class"), "other");
+        SyncMetrics metrics = new SyncMetrics("app");
+        SyncManifest manifest = manifest();
+
+        reconciler.schedule("app", source, target, manifest, local, metrics);
+        awaitReconciliations(metrics, 1);
+        Assert.assertEquals("some", read(target.resolve("a/Some.class")));
+        Assert.assertEquals("other", read(target.resolve("Other.class")));
+        Assert.assertEquals(2, metrics.getFilesCopied());
+        Assert.assertEquals(("some" + "other").length(), metrics.getBytesCopied());
+
+        // e.g. the events have been lost
+        Files.delete(source.resolve("Other.class"));
+        reconciler.schedule("app", source, target, manifest, local, metrics);
+        awaitReconciliations(metrics, 2);
+        Assert.assertTrue(Files.notExists(target.resolve("Other.class")));
+        Assert.assertEquals(1, metrics.getFilesDeleted());
+        Assert.assertTrue(metrics.toJson(), metrics.toJson().contains("\"reconciliationCount\":2,"));
+        Assert.assertTrue(metrics.getReconciliationMillis() >= metrics.getLastReconciliationMillis());
+    }
+
+    @Test
+    public void overlappingRequestsTest() throws Exception {
+        // a workspace module both webapps depend on
+        Path module = folder.newFolder("module").toPath();
+        write(module.resolve("a/Some.class"), "some");
+        Path first = folder.newFolder("first").toPath();
+        Path second = folder.newFolder("second").toPath();
+        Path blocked = folder.newFolder("blocked").toPath();
+        SyncMetrics firstMetrics = new SyncMetrics("first");
+        SyncMetrics secondMetrics = new SyncMetrics("second");
+        SyncMetrics blockedMetrics = new SyncMetrics("blocked");
+
+        // hold the reconciliation thread, so that the following requests are pending together
+        BlockingTarget blockingTarget = new BlockingTarget(local);
+        reconciler.schedule("blocked", module, blocked, manifest(), blockingTarget, blockedMetrics);
+        Assert.assertTrue(blockingTarget.started.await(10, TimeUnit.SECONDS));
+
+        reconciler.schedule("first", module.resolve("a"), first.resolve("a"), manifest(), local, firstMetrics);
+        reconciler.schedule("first", module, first, manifest(), local, firstMetrics);
+        reconciler.schedule("first", module, first, manifest(), local, firstMetrics);
+        reconciler.schedule("second", module.resolve("a"), second.resolve("a"), manifest(), local, secondMetrics);
+        blockingTarget.release.countDown();
+
+        awaitReconciliations(blockedMetrics, 1);
+        awaitReconciliations(firstMetrics, 1);
+        awaitReconciliations(secondMetrics, 1);
+        // the subdirectory is covered by the whole module, and the same request is merged - but only within a webapp
+        Thread.sleep(200);
+        Assert.assertEquals(1, firstMetrics.getReconciliationCount());
+        Assert.assertEquals(1, secondMetrics.getReconciliationCount());
+        Assert.assertEquals("some", read(first.resolve("a/Some.class")));
+        Assert.assertEquals("some", read(second.resolve("a/Some.class")));
+    }
+
+    private SyncManifest manifest() {
+        return SyncManifest.load(folder.getRoot().toPath().resolve("none.manifest"));
+    }
+
+    private static void awaitReconciliations(SyncMetrics metrics, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (metrics.getReconciliationCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, metrics.getReconciliationCount());
+    }
+
+    private static void write(Path file, String contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Blocks on listing the target, until released
+     */
+    private static class BlockingTarget extends SyncTarget {
+        private final SyncTarget target;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingTarget(SyncTarget target) {
+            this.target = target;
+        }
+
+        @Override
+        public void transfer(Path source, Path target) throws IOException {
+            this.target.transfer(source, target);
+        }
+
+        @Override
+        public void delete(Path target) throws IOException {
+            this.target.delete(target);
+        }
+
+        @Override
+        public void createDirectories(Path directory) throws IOException {
+            target.createDirectories(directory);
+        }
+
+        @Override
+        public Map<String, FileState> list(Path directory) throws IOException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return target.list(directory);
+        }
+
+        @Override
+        public String getName() {
+            return "blocking";
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package bg.bozho.aardwark;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemoteSyncTargetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path localWebapps;
+    private Path remoteWebapps;
+    private SyncAgent agent;
+    private RemoteSyncTarget target;
+
+    @Before
+    public void setUp() throws Exception {
+        localWebapps = folder.newFolder("local").toPath();
+        remoteWebapps = folder.newFolder("remote").toPath();
+        agent = new SyncAgent(remoteWebapps, "secret");
+        int port = agent.start("127.0.0.1", 0);
+        target = new RemoteSyncTarget("127.0.0.1", port, "secret", localWebapps, 1024, 16 * 1024, Throttle.unlimited());
+    }
+
+    @After
+    public void tearDown() {
+        target.close();
+        agent.close();
+    }
+
+    @Test
+    public void deltaTransferTest() throws Exception {
+        byte[] contents = new byte[512 * 1024];
+        new Random(42).nextBytes(contents);
+        Path source = folder.getRoot().toPath().resolve("big.jar");
+        Files.write(source, contents);
+        Files.setLastModifiedTime(source, FileTime.fromMillis(1400000000000L));
+
+        target.transfer(source, localWebapps.resolve("app/WEB-INF/lib/big.jar"));
+        Path remoteFile = remoteWebapps.resolve("app/WEB-INF/lib/big.jar");
+        Assert.assertArrayEquals(contents, Files.readAllBytes(remoteFile));
+        Assert.assertEquals(1400000000000L, Files.getLastModifiedTime(remoteFile).toMillis());
+        Assert.assertEquals(contents.length, target.getSentBytes());
+
+        // a few bytes changed in the middle, and some inserted, shifting the rest
+        contents[200 * 1024] ^= 1;
+        byte[] modified = new byte[contents.length + 3];
+        System.arraycopy(contents, 0, modified, 0, 300 * 1024);
+        System.arraycopy(contents, 300 * 1024, modified, 300 * 1024 + 3, contents.length - 300 * 1024);
+        Files.write(source, modified);
+
+        target.transfer(source, localWebapps.resolve("app/WEB-INF/lib/big.jar"));
+        Assert.assertArrayEquals(modified, Files.readAllBytes(remoteFile));
+        long deltaBytes = target.getSentBytes() - contents.length;
+        Assert.assertTrue("Only the changed blocks should be sent, but " + deltaBytes + " bytes were", deltaBytes < 8 * 1024);
+        Assert.assertTrue(target.getMatchedBytes() > 500 * 1024);
+    }
+
+    @Test
+    public void directorySyncTest() throws Exception {
+        Path source = folder.newFolder("classes").toPath();
+        write(source.resolve("bg/bozho/Some.class"), "some");
+        write(source.resolve("config.properties"), "foo=bar");
+        Path classes = localWebapps.resolve("app/WEB-INF/classes");
+        DirectorySync directorySync = new DirectorySync(2, false);
+        try {
+            SyncManifest manifest = SyncManifest.load(folder.getRoot().toPath().resolve("test.manifest"));
+            DirectorySync.Result result = directorySync.sync(source, classes, manifest, target);
+            Assert.assertEquals(2, result.getCopied());
+            Assert.assertEquals("some", read(remoteWebapps.resolve("app/WEB-INF/classes/bg/bozho/Some.class")));
+            Assert.assertTrue("Nothing should be written locally", Files.notExists(classes));
+
+            Files.delete(source.resolve("config.properties"));
+            result = directorySync.sync(source, classes, manifest, target);
+            Assert.assertEquals(1, result.getSkipped());
+            Assert.assertEquals(1, result.getDeleted());
+            Assert.assertTrue(Files.notExists(remoteWebapps.resolve("app/WEB-INF/classes/config.properties")));
+
+            Map<String, SyncTarget.FileState> files = target.list(classes.resolve("bg/bozho"));
+            Assert.assertEquals(1, files.size());
+            Assert.assertEquals(Files.size(source.resolve("bg/bozho/Some.class")), files.get("Some.class").getSize());
+            Assert.assertTrue(target.list(classes.resolve("missing")).isEmpty());
+        } finally {
+            directorySync.shutdown();
+        }
+    }
+
+    @Test
+    public void failuresTest() throws Exception {
+        try {
+            target.list(folder.getRoot().toPath());
+            Assert.fail("Paths outside the webapps directory should be rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        RemoteSyncTarget unauthorized = new RemoteSyncTarget("127.0.0.1", agent.getPort(), "wrong", localWebapps, 1024,
+                16 * 1024, Throttle.unlimited());
+        try {
+            unauthorized.list(localWebapps);
+            Assert.fail("Invalid token should be rejected");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("Invalid token"));
+        } finally {
+            unauthorized.close();
+        }
+
+        // a failed upload doesn't affect the requests that follow
+        Path source = folder.getRoot().toPath().resolve("some.txt");
+        write(source, "some");
+        write(remoteWebapps.resolve("app/blocked/other.txt"), "other");
+        try {
+            target.transfer(source, localWebapps.resolve("app/blocked"));
+            Assert.fail("Replacing a directory with a file should fail");
+        } catch (IOException ex) {
+            // expected
+        }
+        target.transfer(source, localWebapps.resolve("app/some.txt"));
+        target.flush();
+        Assert.assertEquals("some", read(remoteWebapps.resolve("app/some.txt")));
+    }
+
+    @Test
+    public void invalidDataLengthTest() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", agent.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(SyncProtocol.HELLO);
+            out.writeInt(SyncProtocol.VERSION);
+            out.writeUTF("secret");
+            out.writeByte(SyncProtocol.DATA);
+            out.writeInt(1);
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+
+            socket.setSoTimeout(10000);
+            InputStream in = socket.getInputStream();
+            Assert.assertEquals(SyncProtocol.OK, in.read());
+            // the agent drops the connection rather than allocating the data
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void exposedWithoutTokenTest() throws Exception {
+        SyncAgent exposed = new SyncAgent(remoteWebapps, "");
+        try {
+            exposed.start("0.0.0.0", 0);
+            Assert.fail("The agent should not be exposed without a token");
+        } catch (IllegalStateException ex) {
+            // expected
+        } finally {
+            exposed.close();
+        }
+    }
+
+    private static void write(Path file, String contents) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, Arrays.asList(contents), Charset.forName("UTF-8"));
+    }
+
+    private static String read(Path file) throws Exception {
+        return Files.readAllLines(file, Charset.forName("UTF-8")).get(0);
+    }
+}
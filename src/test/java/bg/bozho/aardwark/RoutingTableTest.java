@@ -0,0 +1,106 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.Resource;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoutingTableTest {
+
+    private Path webapp = Paths.get("/server/webapps/app");
+
+    @Test
+    public void defaultLayoutTest() {
+        // a project that happens to live under a directory named like a source root
+        Path project = Paths.get("/work/src/main/webapp/project");
+        RoutingTable routingTable = RoutingTable.create(project, null);
+
+        Assert.assertEquals(webapp.resolve("WEB-INF/classes/a/B.class"),
+                routingTable.resolve(project.resolve("target/classes/a/B.class"), webapp));
+        Assert.assertEquals(webapp.resolve("index.jsp"), routingTable.resolve(project.resolve("src/main/webapp/index.jsp"), webapp));
+        Assert.assertEquals(webapp, routingTable.resolve(project.resolve("src/main/webapp"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("pom.xml"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("target/classesx/B.class"), webapp));
+    }
+
+    @Test
+    public void laneTest() {
+        Path project = Paths.get("/work/project");
+        RoutingTable routingTable = RoutingTable.create(project, null);
+
+        Assert.assertEquals(FileChange.Lane.CLASSES, routingTable.getLane(project.resolve("target/classes/a/B.class")));
+        Assert.assertEquals(FileChange.Lane.CLASSES, routingTable.getLane(project.resolve("target/classes/messages.html")));
+        Assert.assertEquals(FileChange.Lane.TEMPLATES, routingTable.getLane(project.resolve("src/main/webapp/WEB-INF/views/index.JSP")));
+        Assert.assertEquals(FileChange.Lane.STATIC, routingTable.getLane(project.resolve("src/main/webapp/video/intro.mp4")));
+        Assert.assertEquals(FileChange.Lane.STATIC, routingTable.getLane(project.resolve("src/main/webapp/js/bundle.js")));
+    }
+
+    @Test
+    public void classesOnlyTest() {
+        // a workspace module the webapp depends on
+        Path project = Paths.get("/work/module");
+        RoutingTable routingTable = RoutingTable.create(project, null, false);
+
+        Assert.assertEquals(webapp.resolve("WEB-INF/classes/a/B.class"),
+                routingTable.resolve(project.resolve("target/classes/a/B.class"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("src/main/webapp/index.jsp"), webapp));
+    }
+
+    @Test
+    public void customLayoutTest() {
+        Path project = Paths.get("/work/project");
+        Model model = new Model();
+        Build build = new Build();
+        build.setOutputDirectory("/work/project/out/classes");
+        build.addResource(resource("conf", null, false));
+        build.addResource(resource("templates", "mail", false));
+        build.addResource(resource("filtered", null, true));
+        Plugin war = new Plugin();
+        war.setArtifactId("maven-war-plugin");
+        Xpp3Dom configuration = new Xpp3Dom("configuration");
+        configuration.addChild(child("warSourceDirectory", "web"));
+        Xpp3Dom webResources = new Xpp3Dom("webResources");
+        Xpp3Dom webResource = new Xpp3Dom("resource");
+        webResource.addChild(child("directory", "web/generated/js"));
+        webResource.addChild(child("targetPath", "static"));
+        webResources.addChild(webResource);
+        configuration.addChild(webResources);
+        war.setConfiguration(configuration);
+        build.addPlugin(war);
+        model.setBuild(build);
+
+        RoutingTable routingTable = RoutingTable.create(project, model);
+        Assert.assertEquals(webapp.resolve("WEB-INF/classes/a/B.class"),
+                routingTable.resolve(project.resolve("out/classes/a/B.class"), webapp));
+        Assert.assertEquals(webapp.resolve("WEB-INF/classes/app.properties"),
+                routingTable.resolve(project.resolve("conf/app.properties"), webapp));
+        Assert.assertEquals(webapp.resolve("WEB-INF/classes/mail/welcome.ftl"),
+                routingTable.resolve(project.resolve("templates/welcome.ftl"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("filtered/app.properties"), webapp));
+        Assert.assertEquals(webapp.resolve("index.jsp"), routingTable.resolve(project.resolve("web/index.jsp"), webapp));
+        // the more specific web resource wins over the war source directory containing it
+        Assert.assertEquals(webapp.resolve("static/app.js"), routingTable.resolve(project.resolve("web/generated/js/app.js"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("target/classes/a/B.class"), webapp));
+        Assert.assertNull(routingTable.resolve(project.resolve("src/main/webapp/index.jsp"), webapp));
+    }
+
+    private Resource resource(String directory, String targetPath, boolean filtering) {
+        Resource resource = new Resource();
+        resource.setDirectory(directory);
+        resource.setTargetPath(targetPath);
+        resource.setFiltering(filtering);
+        return resource;
+    }
+
+    private Xpp3Dom child(String name, String value) {
+        Xpp3Dom child = new Xpp3Dom(name);
+        child.setValue(value);
+        return child;
+    }
+}
@@ -0,0 +1,60 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyncMetricsTest {
+
+    @Test
+    public void latencyHistogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(99));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(100);
+        histogram.record(5000);
+
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(5000, histogram.getMax());
+        // upper bounds of the buckets
+        Assert.assertEquals(4, histogram.getPercentile(50));
+        Assert.assertEquals(128, histogram.getPercentile(99));
+        Assert.assertEquals(5000, histogram.getPercentile(100));
+        Assert.assertEquals((98 * 3 + 100 + 5000) / 100.0, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void jsonTest() {
+        SyncMetrics metrics = new SyncMetrics("app \"1\"");
+        metrics.eventReceived();
+        metrics.eventReceived();
+        metrics.watchAdded();
+        metrics.phaseCompleted("watches", 12);
+        metrics.phaseCompleted("watches", 3);
+        metrics.changeApplied(new FileChange(FileChange.Kind.MODIFY, Paths.get("A.class"), Paths.get("B.class"), null), 1024);
+        metrics.changeApplied(new FileChange(FileChange.Kind.DELETE, Paths.get("C.class"), Paths.get("D.class"), null), 0);
+
+        String json = metrics.toJson();
+        Assert.assertTrue(json, json.startsWith("{\"webappName\":\"app \\\"1\\\"\",\"state\":\"INITIALIZING\",\"eventsReceived\":2,"));
+        Assert.assertTrue(json, json.contains("\"filesCopied\":1,\"bytesCopied\":1024,\"filesDeleted\":1,"));
+        Assert.assertTrue(json, json.contains("\"watchCount\":1,"));
+        Assert.assertTrue(json, json.contains("\"copyLatencyMillis\":{\"count\":2,"));
+        Assert.assertTrue(json, json.contains("\"laneLatencyMillis\":{\"classes\":{\"count\":0,"));
+        Assert.assertTrue(json, json.contains("\"static\":{\"count\":2,"));
+        Assert.assertTrue(json, json.endsWith("\"startupPhaseMillis\":{\"watches\":15}}"));
+    }
+
+    @Test
+    public void readinessTest() throws Exception {
+        SyncMetrics metrics = new SyncMetrics("app");
+        Assert.assertEquals(SyncMetrics.State.INITIALIZING, metrics.awaitSettled(10));
+
+        metrics.setState(SyncMetrics.State.FAILED, "No such directory");
+        Assert.assertEquals(SyncMetrics.State.FAILED, metrics.awaitSettled(0));
+        Assert.assertEquals("No such directory", metrics.getInitializationError());
+        Assert.assertTrue(metrics.toJson(), metrics.toJson().contains("\"state\":\"FAILED\",\"initializationError\":\"No such directory\","));
+    }
+}
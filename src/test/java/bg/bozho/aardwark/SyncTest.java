@@ -1,20 +1,37 @@
 package bg.bozho.aardwark;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.maven.model.Model;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import bg.bozho.aardwark.StartupListener.WatchableDirectory;
 
 public class SyncTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void targetPathTest() {
         FileSystem fs = FileSystems.getDefault();
@@ -32,20 +49,83 @@ public class SyncTest {
     @Test
     public void watchDependentProjectsTest() throws Exception {
         FileSystem fs = FileSystems.getDefault();
+        Path workspace = folder.newFolder("foo").toPath().toAbsolutePath().normalize();
+        writePom(workspace, "foo", "<modules><module>bar</module><module>another</module><module>unrelated</module></modules>");
+        writePom(Files.createDirectories(workspace.resolve("another")), "another", "");
+        writePom(Files.createDirectories(workspace.resolve("unrelated")), "unrelated", "");
         StartupListener listener = new StartupListener();
-        listener.addProjectPath("bar", fs.getPath("/workspace/foo/bar"));
+        listener.addProjectPath("bar", workspace.resolve("bar"));
         listener.addWebappPath("bar", fs.getPath("/tomcat/webapps/bar"));
         WatchService watcher = Mockito.mock(WatchService.class);
         listener.setWatcher(watcher);
         listener = Mockito.spy(listener);
+        // the dependent project itself is not set up here
+        Mockito.doNothing().when(listener).watchDependentProjects(Mockito.anyString(), Mockito.<Model> any(),
+                Mockito.<Set<String>> any(), Mockito.eq(workspace.resolve("another")));
         Set<String> dependencies = new HashSet<>();
         dependencies.add("another");
         Model model = new Model();
-        model.setModules(Arrays.asList("another"));
-        listener.watchDependentProjects("another", model, dependencies, fs.getPath("/workspace/foo/another"));
+        model.setModules(Arrays.asList("bar", "another", "unrelated"));
+        listener.watchDependentProjects("bar", model, dependencies, workspace);
         // one direct invocation + one invocation for the dependent project
-        // "another"
+        // "another" - the other modules are not visited
         Mockito.verify(listener, Mockito.times(2)).watchDependentProjects(Mockito.anyString(), Mockito.<Model> any(),
                 Mockito.<Set<String>> any(), Mockito.<Path> any());
+        Mockito.verify(listener).watchDependentProjects(Mockito.anyString(), Mockito.<Model> any(),
+                Mockito.<Set<String>> any(), Mockito.eq(workspace.resolve("another")));
+    }
+
+    @Test
+    public void sharedModuleTest() throws Exception {
+        // a workspace module both webapps depend on
+        Path module = folder.newFolder("module").toPath();
+        Files.createDirectories(module.resolve("target/classes"));
+        final Map<Path, WatchKey> keys = new HashMap<>();
+        ChangeDetector detector = Mockito.mock(ChangeDetector.class);
+        Mockito.when(detector.register(Mockito.<Path> any())).thenAnswer(new Answer<WatchKey>() {
+            @Override
+            public WatchKey answer(InvocationOnMock invocation) {
+                // the same key for the same directory, as the watch service does
+                Path dir = (Path) invocation.getArguments()[0];
+                if (!keys.containsKey(dir)) {
+                    WatchKey key = Mockito.mock(WatchKey.class);
+                    Mockito.when(key.reset()).thenReturn(true);
+                    keys.put(dir, key);
+                }
+                return keys.get(dir);
+            }
+        });
+        StartupListener listener = new StartupListener();
+        listener.setChangeDetector(ChangeDetector.NATIVE, detector);
+        listener = Mockito.spy(listener);
+        listener.watchProject("first", module, null, true);
+        listener.watchProject("second", module, null, true);
+        Assert.assertEquals(keys.size(), listener.getMetrics("first").getWatchCount());
+        Assert.assertEquals(keys.size(), listener.getMetrics("second").getWatchCount());
+
+        WatchKey key = keys.get(module.resolve("target/classes"));
+        listener.eventsTaken(key);
+        ArgumentCaptor<WatchableDirectory> directories = ArgumentCaptor.forClass(WatchableDirectory.class);
+        Mockito.verify(listener, Mockito.times(2)).dispatchEvents(directories.capture(), Mockito.<List<WatchEvent<?>>> any());
+        Assert.assertEquals("first", directories.getAllValues().get(0).getWebappName());
+        Assert.assertEquals("second", directories.getAllValues().get(1).getWebappName());
+
+        // e.g. the first webapp has failed to be set up - the other one keeps watching the module
+        listener.unwatch("first");
+        Mockito.verify(key, Mockito.never()).cancel();
+        Assert.assertEquals(0, listener.getMetrics("first").getWatchCount());
+        listener.eventsTaken(key);
+        Mockito.verify(listener, Mockito.times(3)).dispatchEvents(directories.capture(), Mockito.<List<WatchEvent<?>>> any());
+        Assert.assertEquals("second", directories.getValue().getWebappName());
+
+        listener.unwatch("second");
+        Mockito.verify(key).cancel();
+        Assert.assertEquals(0, listener.getMetrics("second").getWatchCount());
+    }
+
+    private static void writePom(Path dir, String artifactId, String contents) throws Exception {
+        String pom = "<project><modelVersion>4.0.0</modelVersion><groupId>test</groupId><artifactId>" + artifactId
+                + "</artifactId><version>1</version>" + contents + "</project>";
+        Files.write(dir.resolve("pom.xml"), pom.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,60 @@
+package bg.bozho.aardwark;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WatchFilterTest {
+
+    private Path project = Paths.get("/work/project");
+
+    @Test
+    public void defaultExcludesTest() {
+        WatchFilter filter = new WatchFilter(FileSystems.getDefault(), null, WatchFilter.DEFAULT_EXCLUDES);
+
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("src/main/webapp/node_modules")));
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("src/main/webapp/static/bower_components")));
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("src/main/webapp/.svn")));
+        Assert.assertTrue(filter.isExcluded(project, project.resolve(".settings")));
+        Assert.assertFalse(filter.isExcluded(project, project.resolve("src/main/webapp/js")));
+        Assert.assertFalse(filter.isExcluded(project, project.resolve("target/classes/node_modules_list")));
+        // everything is included if there are no include patterns
+        Assert.assertTrue(filter.isIncluded(project, project.resolve("target/classes")));
+    }
+
+    @Test
+    public void customPatternsTest() {
+        WatchFilter filter = new WatchFilter(FileSystems.getDefault(), " target/classes, src/main/webapp/WEB-INF/** ",
+                "**/generated,src/main/webapp/assets");
+
+        Assert.assertTrue(filter.isIncluded(project, project.resolve("target/classes")));
+        Assert.assertTrue(filter.isIncluded(project, project.resolve("src/main/webapp/WEB-INF/views")));
+        Assert.assertFalse(filter.isIncluded(project, project.resolve("target/classes/a")));
+        Assert.assertFalse(filter.isIncluded(project, project.resolve("src/main/webapp")));
+
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("target/classes/generated")));
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("src/main/webapp/assets")));
+        Assert.assertFalse(filter.isExcluded(project, project.resolve("src/main/webapp/assets/img")));
+        // the defaults apply only if no excludes are configured
+        Assert.assertFalse(filter.isExcluded(project, project.resolve("src/main/webapp/node_modules")));
+    }
+
+    @Test
+    public void excludeOverIncludeTest() {
+        WatchFilter filter = new WatchFilter(FileSystems.getDefault(), "src/**", WatchFilter.DEFAULT_EXCLUDES);
+
+        // directories are checked for exclusion first, and excluded ones are skipped with their subtree
+        Path dir = project.resolve("src/main/webapp/node_modules");
+        Assert.assertTrue(filter.isIncluded(project, dir));
+        Assert.assertTrue(filter.isExcluded(project, dir));
+        // hidden directories can't be included either
+        Assert.assertTrue(filter.isIncluded(project, project.resolve("src/.git")));
+        Assert.assertTrue(filter.isExcluded(project, project.resolve("src/.git")));
+
+        Assert.assertTrue(filter.isIncluded(project, project.resolve("src/main/webapp/js")));
+        Assert.assertFalse(filter.isExcluded(project, project.resolve("src/main/webapp/js")));
+    }
+}